@@ -0,0 +1,132 @@
+package gg.embargo;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import net.runelite.client.callback.ClientThread;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs large client-thread jobs a slice at a time so they do not hitch a frame.
+ * <p>
+ * Each client tick a job gets {@link #BUDGET_NANOS} of steps, then yields until the next
+ * tick. A step is never interrupted, so one that runs long pushes the tick over budget and
+ * that overrun is reported with the job once it finishes. Submitting a job under a name that
+ * is still running cancels the older one.
+ */
+@Slf4j
+@Singleton
+public class ClientJobScheduler {
+
+    @FunctionalInterface
+    public interface Job {
+        /**
+         * Does one small slice of work on the client thread.
+         *
+         * @return true once the job is finished
+         */
+        boolean step();
+
+        /**
+         * Whether the job can make progress now. A job that is not ready waits for the next
+         * tick without being stepped.
+         */
+        default boolean isReady() {
+            return true;
+        }
+    }
+
+    @Value
+    public static class Report {
+        int ticks;
+        long elapsedNanos;
+        long overrunNanos;
+    }
+
+    static final long BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    @Inject
+    private ClientThread clientThread;
+
+    private final Map<String, Run> running = new ConcurrentHashMap<>();
+    private final Map<String, Report> reports = new ConcurrentHashMap<>();
+
+    public void submit(String name, Job job) {
+        Run run = new Run(name, job);
+        Run previous = running.put(name, run);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        clientThread.invokeLater(run::tick);
+    }
+
+    public boolean isRunning(String name) {
+        return running.containsKey(name);
+    }
+
+    /**
+     * @return the report of the last completed run of each job, by name
+     */
+    public Map<String, Report> getReports() {
+        return Collections.unmodifiableMap(reports);
+    }
+
+    private final class Run {
+        final String name;
+        final Job job;
+        volatile boolean cancelled;
+
+        // Only touched on the client thread
+        int ticks;
+        long elapsedNanos;
+        long overrunNanos;
+
+        Run(String name, Job job) {
+            this.name = name;
+            this.job = job;
+        }
+
+        boolean tick() {
+            if (cancelled) {
+                log.debug("{} cancelled after {} ticks", name, ticks);
+                return true;
+            }
+
+            ticks++;
+            if (!job.isReady()) {
+                return false;
+            }
+            long start = System.nanoTime();
+            long now;
+            boolean done;
+            try {
+                do {
+                    done = job.step();
+                    now = System.nanoTime();
+                } while (!done && now - start < BUDGET_NANOS);
+            } catch (RuntimeException e) {
+                log.error("{} failed after {} ticks", name, ticks, e);
+                running.remove(name, this);
+                return true;
+            }
+
+            long spent = now - start;
+            elapsedNanos += spent;
+            overrunNanos += Math.max(0, spent - BUDGET_NANOS);
+            if (!done) {
+                return false;
+            }
+
+            running.remove(name, this);
+            reports.put(name, new Report(ticks, elapsedNanos, overrunNanos));
+            log.debug("{} finished in {} ticks, {}us of work, {}us over budget", name, ticks,
+                    TimeUnit.NANOSECONDS.toMicros(elapsedNanos), TimeUnit.NANOSECONDS.toMicros(overrunNanos));
+            return true;
+        }
+    }
+}
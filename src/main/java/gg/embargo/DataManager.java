@@ -25,42 +25,71 @@
  */
 package gg.embargo;
 
-import com.google.common.collect.HashMultimap;
 import com.google.gson.*;
+import gg.embargo.api.ClogUnlockBody;
+import gg.embargo.api.CompletionBody;
+import gg.embargo.api.EmbargoApi;
+import gg.embargo.api.LootBody;
+import gg.embargo.api.VarFormat;
+import gg.embargo.api.VarSubmissionBody;
+import gg.embargo.api.VarintSubmissionBody;
+import gg.embargo.collections.PlayerProfile;
+import gg.embargo.manifest.ManifestChanged;
 import gg.embargo.manifest.ManifestManager;
-import gg.embargo.ui.EmbargoPanel;
+import gg.embargo.outbox.Outbox;
+import gg.embargo.outbox.SnapshotStore;
+import gg.embargo.sync.ChangeCapture;
+import gg.embargo.sync.DirtyVarps;
+import gg.embargo.sync.FlushScheduler;
+import gg.embargo.sync.TrackedVars;
+import gg.embargo.sync.VarSnapshot;
+import gg.embargo.sync.VarSubmission;
+import gg.embargo.sync.VarbitIndex;
+import gg.embargo.sync.VarbitIndexBuilder;
 import gg.embargo.untrackables.UntrackableItemManager;
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.*;
+import net.runelite.api.events.GameTick;
 import net.runelite.api.events.VarbitChanged;
 import net.runelite.client.callback.ClientThread;
 import net.runelite.client.config.RuneScapeProfileType;
+import net.runelite.client.eventbus.EventBus;
 import net.runelite.client.eventbus.Subscribe;
 import net.runelite.client.game.ItemManager;
 import net.runelite.client.game.ItemStack;
 import net.runelite.client.plugins.loottracker.LootReceived;
-import net.runelite.client.task.Schedule;
 import okhttp3.*;
 import okio.BufferedSource;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.IOException;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
+/**
+ * Captures varbit, varp and skill changes and submits them to the Embargo API.
+ * <p>
+ * Apart from what {@link #startUp} sets up, everything mutable here is written on the client
+ * thread. Work arriving on scheduler, executor and OkHttp threads, such as flushes,
+ * registration answers, submission responses and acknowledged snapshots, is posted to it with
+ * {@link ClientThread#invoke}, so the client thread's queue is the only writer and never waits
+ * on a lock. Disk reads and writes run on the executor, on copies handed over from the client
+ * thread. Other threads only read values published through volatile fields: the
+ * {@link TrackedVars} of the manifest, the logged in {@link PlayerProfile}, when the account
+ * may be asked about again, and the pending change counts the {@link FlushScheduler} polls.
+ */
 @Slf4j
 @Singleton
-public class DataManager {
+public class DataManager implements Outbox.Replayer {
     @Inject
     private Client client;
 
@@ -71,91 +100,421 @@ public class DataManager {
     private ClientThread clientThread;
 
     @Inject
-    private OkHttpClient okHttpClient;
+    private EmbargoApi embargoApi;
 
     @Inject
-    private EmbargoPanel embargoPanel;
+    private Gson gson;
 
     @Inject
-    private Gson gson;
+    private ScheduledExecutorService executor;
 
-    @Getter
-    @Setter
-    private HashSet<Integer> varpsToCheck;
+    @Inject
+    private Outbox outbox;
+
+    @Inject
+    private SnapshotStore snapshotStore;
+
+    @Inject
+    private RegistrationCache registrationCache;
+
+    @Inject
+    private ClientJobScheduler jobScheduler;
+
+    @Inject
+    private EventBus eventBus;
 
+    // Swapped whole once per manifest version, null until the first manifest arrives
     @Getter
-    @Setter
-    private HashSet<Integer> varbitsToCheck;
+    private volatile TrackedVars trackedVars;
 
     @Inject
     private ManifestManager manifestManager;
 
+    // Until when the logged in account is known not to be registered, 0 if it is not. Reset
+    // on account change, and past once that answer expires so the account is asked about again.
+    private volatile long stopTryingUntil;
+
+    private int[] oldVarps;
+
+    // Varps changed since the last game tick, diffed against oldVarps once per tick
+    private final DirtyVarps dirtyVarps = new DirtyVarps();
+
+    // Rebuilt on the client thread and swapped in whole, so onVarbitChanged never sees a
+    // partially built index
+    private volatile VarbitIndex varbitIndex = VarbitIndex.EMPTY;
+    // The tracked vars varbitIndex was built for. Client thread only.
+    private TrackedVars indexedVars;
+    private final VarbitIndexBuilder varbitIndexBuilder = new VarbitIndexBuilder();
+
+    private final ChangeCapture changes = new ChangeCapture();
+
+    // Outbox records whose changes were merged back into the pending changes. The next
+    // drain takes them along and discards them from the outbox once it is delivered. Client
+    // thread only.
+    private final List<Long> restoredRecords = new ArrayList<>();
+
+    // Last captured values per account and profile, so coming back to a profile only
+    // captures what changed while away. Client thread only.
+    private final Map<PlayerProfile, VarSnapshot> snapshots = new HashMap<>();
+    private VarSnapshot retained = new VarSnapshot();
+
+    // Last snapshot version the server acknowledged per account, loaded from disk on first use.
+    // Client thread only.
+    private final Map<PlayerProfile, SnapshotStore.Acknowledged> acknowledged = new HashMap<>();
+    // Completes once the snapshot of the current profile holds its acknowledged values.
+    // Client thread only.
+    private CompletableFuture<Void> seeding = CompletableFuture.completedFuture(null);
+    private static final long NO_SNAPSHOT_VERSION = -1;
+
+    // Index rebuilds and full reads share one job name, so a newer one replaces an older one
+    private static final String VAR_SYNC_JOB = "var sync";
+    private static final int VARBITS_PER_STEP = 64;
+    private static final int VARPS_PER_STEP = 256;
+
+    // Numbers the jobs reading newly tracked vars, which must never replace one another
+    private int addedVarsJobs;
+
+    // The only thing that triggers varbit/varp/level submissions. Created by startUp, before
+    // any event reaches us.
     @Getter
-    @Setter
-    private int lastManifestVersion = -1;
+    private volatile FlushScheduler flushScheduler;
 
-    AtomicBoolean isUsernameRegistered = new AtomicBoolean(false);
-    public AtomicBoolean stopTryingForAccount = new AtomicBoolean(false);
+    // Last account and profile seen logged in, so pending changes can still be attributed
+    // after logout. Written on the client thread, replaced whole so readers never see the
+    // name of one account with the profile of another.
+    private volatile PlayerProfile account;
 
-    private int[] oldVarps;
+    // Switched to a binary format once the server offers one on a submission response. Client
+    // thread only.
+    private VarFormat varFormat = VarFormat.JSON;
 
-    private final HashMultimap<Integer, Integer> varpToVarbitMapping = HashMultimap.create();
+    // How long a final flush on logout, world hop or shutdown may take before it is cancelled
+    private static final long FINAL_FLUSH_TIMEOUT_MS = 3_000;
 
-    private final HashMap<Integer, Integer> varbData = new HashMap<>();
-    private final HashMap<Integer, Integer> varpData = new HashMap<>();
-    private final HashMap<String, Integer> levelData = new HashMap<>();
+    /**
+     * Where the changes of a var submission ended up.
+     */
+    public enum FlushOutcome {
+        FLUSHED("flushed"),
+        WRITTEN_TO_DISK("written to disk"),
+        LOST("lost");
 
-    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+        FlushOutcome(String description) {
+            this.description = description;
+        }
 
-    enum APIRoutes {
-        MANIFEST("runelite/manifest"),
-        UNTRACKABLES("untrackables"),
-        CHECKREGISTRATION("checkregistration"),
-        GET_PROFILE("getgear"),
-        SUBMIT_LOOT("loot"),
-        GET_RAID_MONSTERS_TO_TRACK_LOOT("lootBosses"),
-        PREPARE_RAID("raid"),
-        UPLOAD_CLOG("collectionlog"),
-        MINIGAME_COMPLETE("minigame"),
-        GET_MEMBER_INFO("embargo-profile");
+        @Getter
+        private final String description;
+    }
 
-        APIRoutes(String route) {
+    public enum APIRoutes {
+        MANIFEST("runelite/manifest", 10),
+        UNTRACKABLES("untrackables", 15),
+        CHECKREGISTRATION("checkregistration", 5),
+        GET_PROFILE("getgear", 10),
+        SUBMIT_LOOT("loot", 10),
+        GET_RAID_MONSTERS_TO_TRACK_LOOT("lootBosses", 10),
+        PREPARE_RAID("raid", 10),
+        UPLOAD_CLOG("collectionlog", 10),
+        MINIGAME_COMPLETE("minigame", 10),
+        GET_MEMBER_INFO("embargo-profile", 10),
+        UPLOAD_COLLECTION_LOG("runelite/uploadcollectionlog", 3);
+
+        APIRoutes(String route, int timeoutSeconds) {
             this.route = route;
+            this.timeoutSeconds = timeoutSeconds;
         }
 
         private final String route;
 
+        // Whole call, from connecting to reading the last byte of the response
+        @Getter
+        private final int timeoutSeconds;
+
+        /**
+         * @return the route with the given path, or null if there is none
+         */
+        public static APIRoutes fromRoute(String route) {
+            for (APIRoutes value : values()) {
+                if (value.route.equals(route)) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
         @Override
         public String toString() {
             return route;
         }
     }
 
-    // private static final String MOCK_API_URI =
-    // "https://a278d141-927f-433b-8e4b-6d994067900d.mock.pstmn.io/api/";
-    private static final String API_URI = "https://embargo.gg/api/";
-    private static final String MANIFEST_ENDPOINT = API_URI + APIRoutes.MANIFEST;
-    private static final String UNTRACKABLE_POST_ENDPOINT = API_URI + APIRoutes.UNTRACKABLES;
-    private static final String CHECK_REGISTRATION_ENDPOINT = API_URI + APIRoutes.CHECKREGISTRATION;
-    private static final String GET_PROFILE_ENDPOINT = API_URI + APIRoutes.GET_PROFILE;
-    private static final String SUBMIT_LOOT_ENDPOINT = API_URI + APIRoutes.SUBMIT_LOOT;
-    private static final String TRACK_MONSTERS_ENDPOINT = API_URI + APIRoutes.GET_RAID_MONSTERS_TO_TRACK_LOOT;
-    private static final String PREPARE_RAID_ENDPOINT = API_URI + APIRoutes.PREPARE_RAID;
-    private static final String MINIGAME_COMPLETION_ENDPOINT = API_URI + APIRoutes.MINIGAME_COMPLETE;
-    private static final String CLOG_UNLOCK_ENDPOINT = API_URI + APIRoutes.UPLOAD_CLOG;
-    private static final String GET_MEMBER_INFO_ENDPOINT = API_URI + APIRoutes.GET_MEMBER_INFO;
-
     public static ArrayList BossesToTrack = null;
 
-    public void storeVarbitChanged(int varbIndex, int varbValue) {
-        synchronized (this) {
-            varbData.put(varbIndex, varbValue);
+    public void startUp() {
+        eventBus.register(this);
+        executor.execute(registrationCache::load);
+        flushScheduler = new FlushScheduler(executor, this::submitToAPI, changes::pendingCount, changes::changeCount);
+        flushScheduler.start();
+        outbox.startReplay(executor, this);
+    }
+
+    public void shutDown() {
+        eventBus.unregister(this);
+        if (flushScheduler != null) {
+            flushScheduler.stop();
+        }
+        outbox.stopReplay();
+
+        // RuneLite is waiting on us, so the flush only gets its own timeout to complete
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        clientThread.invoke(() -> {
+            finalFlush("shutdown", true).thenRun(() -> flushed.complete(null));
+        });
+        try {
+            flushed.get(FINAL_FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            log.debug("Final flush did not complete before shutdown");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int cancelled = embargoApi.cancel(null);
+        if (cancelled > 0) {
+            log.debug("Cancelled {} outstanding Embargo calls on shutdown", cancelled);
+        }
+    }
+
+    /**
+     * Follows the logged in account and profile. Changes still pending for the previous one
+     * are parked first, so they are never attributed to the new one.
+     */
+    public void updateAccount() {
+        Player player = client.getLocalPlayer();
+        if (player == null || player.getName() == null) {
+            return;
+        }
+        String name = player.getName();
+        RuneScapeProfileType profileType = RuneScapeProfileType.getCurrent(client);
+        PlayerProfile previous = account;
+        PlayerProfile current = new PlayerProfile(name, profileType);
+        if (current.equals(previous)) {
+            return;
+        }
+
+        if (previous != null) {
+            parkPending(previous);
+        }
+        if (previous == null || !name.equals(previous.getUsername())) {
+            // A different account gets its own registration check
+            stopTryingUntil = 0;
+        }
+        account = current;
+        VarSnapshot snapshot = snapshots.get(current);
+        if (snapshot == null) {
+            snapshot = new VarSnapshot();
+            snapshots.put(current, snapshot);
+            if (profileType == RuneScapeProfileType.STANDARD) {
+                seedFromAcknowledged(current, snapshot);
+            }
+        }
+        retained = snapshot;
+    }
+
+    /**
+     * Sends every change that has not been flushed yet one last time, on logout, world hop or
+     * shutdown. Must run on the client thread. The changes are drained right away but sent
+     * through the flush scheduler, after any flush still in flight. If they have not been
+     * delivered within {@link #FINAL_FLUSH_TIMEOUT_MS} they are parked in the outbox, so they
+     * are never dropped silently.
+     *
+     * @param reason        what the flush is for, only logged
+     * @param forgetAccount whether the account is gone afterwards, as opposed to hopping worlds
+     * @return completes, never exceptionally, once the changes are delivered, in the outbox
+     *         or known to be lost
+     */
+    public CompletableFuture<Void> finalFlush(String reason, boolean forgetAccount) {
+        PlayerProfile flushed = account;
+        if (forgetAccount) {
+            account = null;
+            retained = new VarSnapshot();
+        }
+
+        if (!canSubmit(flushed)) {
+            int dropped = dropPending(flushed);
+            if (dropped > 0) {
+                log.info("Final flush on {}: {} changes lost, {} cannot be submitted", reason, dropped, flushed);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        VarSubmission submission = drain(flushed);
+        if (submission == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long[] records = takeRestoredRecords();
+
+        CompletableFuture<Void> finished = new CompletableFuture<>();
+        // Taken by whichever comes first, the scheduler starting the flush or the timeout
+        AtomicBoolean started = new AtomicBoolean();
+        FlushScheduler.Flusher send = (flushReason, done) -> clientThread.invoke(() -> {
+            if (!started.compareAndSet(false, true)) {
+                done.run();
+                return;
+            }
+            sendVarSubmission(submission, records, EmbargoApi.CallTag.FINAL_FLUSH, outcome -> {
+                log.info("Final flush on {}: {} changes {}", reason, submission.entryCount(), outcome.getDescription());
+                finished.complete(null);
+                done.run();
+            });
+        });
+
+        FlushScheduler scheduler = flushScheduler;
+        if (scheduler != null) {
+            scheduler.flushNow(FlushScheduler.FlushReason.FINAL, send);
+        } else {
+            send.flush(FlushScheduler.FlushReason.FINAL, () -> {
+            });
+        }
+        executor.schedule(() -> {
+            if (started.compareAndSet(false, true)) {
+                // Still waiting behind the flush in flight
+                keepVarSubmission(submission, records).whenComplete((kept, error) -> {
+                    log.info("Final flush on {}: {} changes {}", reason, submission.entryCount(),
+                            FlushOutcome.WRITTEN_TO_DISK.getDescription());
+                    finished.complete(null);
+                });
+            } else if (!finished.isDone()) {
+                embargoApi.cancel(EmbargoApi.CallTag.FINAL_FLUSH);
+            }
+        }, FINAL_FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return finished;
+    }
+
+    /**
+     * Fills a new snapshot with what the server acknowledged in an earlier session, so the
+     * first read after logging in only captures what changed since. Reads wait for it.
+     */
+    private void seedFromAcknowledged(PlayerProfile key, VarSnapshot snapshot) {
+        SnapshotStore.Acknowledged known = acknowledged.get(key);
+        if (known != null) {
+            snapshot.seedFrom(known.getValues());
+            seeding = CompletableFuture.completedFuture(null);
+            return;
+        }
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        seeding = done;
+        executor.execute(() -> {
+            SnapshotStore.Acknowledged ack = null;
+            try {
+                ack = snapshotStore.load(key.getUsername(), key.getProfileType().name());
+            } finally {
+                SnapshotStore.Acknowledged loaded = ack;
+                clientThread.invoke(() -> {
+                    // An acknowledgement that arrived meanwhile is newer than the disk copy
+                    if (loaded != null) {
+                        acknowledged.putIfAbsent(key, loaded);
+                    }
+                    SnapshotStore.Acknowledged current = acknowledged.get(key);
+                    if (current != null) {
+                        snapshot.seedFrom(current.getValues());
+                    }
+                    done.complete(null);
+                });
+            }
+        });
+    }
+
+    private static PlayerProfile profileOf(VarSubmission submission) {
+        return new PlayerProfile(submission.getUsername(), RuneScapeProfileType.valueOf(submission.getProfile()));
+    }
+
+    // Called on the client thread once the server took a submission under a new snapshot version
+    private void acknowledge(VarSubmission submission, long baseVersion, String versionHeader) {
+        long version;
+        try {
+            version = Long.parseLong(versionHeader.trim());
+        } catch (NumberFormatException e) {
+            log.debug("Ignoring malformed snapshot version {}", versionHeader);
+            return;
+        }
+
+        PlayerProfile key = profileOf(submission);
+        SnapshotStore.Acknowledged ack = acknowledged.get(key);
+        // Without a matching base the server did not apply this on top of what we hold, so
+        // only the submission itself is known to be acknowledged
+        if (ack == null || baseVersion == NO_SNAPSHOT_VERSION || ack.getVersion() != baseVersion) {
+            ack = SnapshotStore.empty();
+            acknowledged.put(key, ack);
+        }
+        ack.getValues().apply(submission);
+        ack.setVersion(version);
+
+        VarSubmission values = ack.getValues().toSubmission(key.getUsername(), submission.getProfile());
+        executor.execute(() -> snapshotStore.save(key.getUsername(), submission.getProfile(), version, values));
+    }
+
+    /**
+     * The server holds a different snapshot than the one acknowledged to us, so nothing can be
+     * diffed against it. Forgets it and, for the logged in account, reads every tracked var again.
+     */
+    private void onSnapshotDiverged(VarSubmission submission) {
+        PlayerProfile key = profileOf(submission);
+        clientThread.invoke(() -> {
+            acknowledged.remove(key);
+            executor.execute(() -> snapshotStore.delete(key.getUsername(), submission.getProfile()));
+            if (!isCurrentAccount(submission)) {
+                return;
+            }
+
+            VarSnapshot fresh = new VarSnapshot();
+            snapshots.put(key, fresh);
+            retained = fresh;
+            loadInitialData();
+        });
+    }
+
+    private void parkPending(PlayerProfile profile) {
+        if (!canSubmit(profile)) {
+            dropPending(profile);
+            return;
         }
+
+        VarSubmission submission = drain(profile);
+        if (submission != null) {
+            long[] records = takeRestoredRecords();
+            executor.execute(() -> outbox.replaceVars(records, submission));
+        }
+    }
+
+    private boolean canSubmit(PlayerProfile profile) {
+        return profile != null && !isStoppedTryingForAccount() && profile.getProfileType() == RuneScapeProfileType.STANDARD;
+    }
+
+    /**
+     * @return the number of changes dropped
+     */
+    private int dropPending(PlayerProfile profile) {
+        int dropped = changes.pendingCount();
+        changes.clear();
+        restoredRecords.clear();
+        // Nothing captured for this profile reaches the server, so its snapshot cannot be
+        // trusted for a diff later
+        if (profile != null) {
+            snapshots.remove(profile);
+        }
+        return dropped;
+    }
+
+    public void storeVarbitChanged(int varbIndex, int varbValue) {
+        captureVarbit(varbIndex, varbValue);
+        onChangeCaptured();
     }
 
     public void resetVarbsAndVarpsToCheck() {
-        varbitsToCheck = null;
-        varpsToCheck = null;
+        clientThread.invoke(() -> {
+            trackedVars = null;
+        });
     }
 
     public List<Player> getSurroundingPlayers() {
@@ -182,7 +541,8 @@ public class DataManager {
         if (BossesToTrack != null) {
             return BossesToTrack;
         }
-        okHttpClient.newCall(new Request.Builder().url(TRACK_MONSTERS_ENDPOINT).build()).enqueue(new Callback() {
+        APIRoutes route = APIRoutes.GET_RAID_MONSTERS_TO_TRACK_LOOT;
+        embargoApi.enqueue(route, embargoApi.newRequest(route).build(), new Callback() {
             @Override
             public void onFailure(@NonNull Call call, @NonNull IOException e) {
                 log.debug("Failed to get raid boss list", e);
@@ -208,28 +568,7 @@ public class DataManager {
     }
 
     public void uploadCollectionLogUnlock(String item, String player) {
-        JsonObject payload = getClogUploadPayload(item, player);
-        // log.debug(String.valueOf(payload));
-
-        okHttpClient.newCall(new Request.Builder().url(CLOG_UNLOCK_ENDPOINT)
-                .post(RequestBody.create(JSON, payload.toString())).build()).enqueue(new Callback() {
-                    @Override
-                    public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                        log.debug("Failed to upload new clog slot to Embargo", e);
-                    }
-
-                    @Override
-                    public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                        // Update what we want to track on the fly
-                        if (response.isSuccessful()) {
-                            log.debug("Successfully uploaded new collection log slot");
-                            response.close();
-                            return;
-                        }
-
-                        response.close();
-                    }
-                });
+        upload(APIRoutes.UPLOAD_CLOG, new ClogUnlockBody(player, item), "new collection log slot");
     }
 
     public void uploadRaidCompletion(String raid, String message) {
@@ -237,23 +576,9 @@ public class DataManager {
             return;
         }
 
-        JsonObject payload = getRaidCompletionPayload(raid, message);
-        okHttpClient.newCall(new Request.Builder().url(PREPARE_RAID_ENDPOINT)
-                .post(RequestBody.create(JSON, payload.toString())).build()).enqueue(new Callback() {
-                    @Override
-                    public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                        log.debug("Failed to upload upload raid completion", e);
-                    }
-
-                    @Override
-                    public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                        if (response.isSuccessful()) {
-                            log.debug("Successfully uploaded raid preparation");
-                        }
-
-                        response.close();
-                    }
-                });
+        RequestBody body = CompletionBody.raid(raid, message, client.getLocalPlayer().getName(),
+                getSurroundingPlayerNames());
+        upload(APIRoutes.PREPARE_RAID, body, "raid completion");
     }
 
     public void uploadMinigameCompletion(String minigameName, String message) {
@@ -261,95 +586,71 @@ public class DataManager {
             return;
         }
 
-        JsonObject payload = getMinigamePayload(minigameName, message);
-        okHttpClient.newCall(new Request.Builder().url(MINIGAME_COMPLETION_ENDPOINT)
-                .post(RequestBody.create(JSON, payload.toString())).build()).enqueue(new Callback() {
-                    @Override
-                    public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                        log.debug("Failed to upload upload minigame completion", e);
-                    }
-
-                    @Override
-                    public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                        if (response.isSuccessful()) {
-                            log.debug("Successfully uploaded minigame preparation");
-                        }
-
-                        response.close();
-                    }
-                });
+        RequestBody body = CompletionBody.minigame(minigameName, client.getWorld(), message,
+                client.getLocalPlayer().getName(), getSurroundingPlayerNames());
+        upload(APIRoutes.MINIGAME_COMPLETE, body, "minigame completion");
     }
 
-    private JsonObject getClogUploadPayload(String itemName, String username) {
+    /**
+     * Posts a one-off submission. If it cannot be delivered it is kept in the outbox and
+     * replayed on the next start.
+     */
+    private void upload(APIRoutes route, RequestBody body, String description) {
+        Request request = embargoApi.newRequest(route)
+                .post(body)
+                .build();
 
-        JsonObject payload = new JsonObject();
-        payload.addProperty("playerName", username);
-        payload.addProperty("itemName", itemName);
+        embargoApi.enqueue(route, request, new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                log.debug("Failed to upload {}, keeping it in the outbox", description, e);
+                executor.execute(() -> outbox.appendRequest(route.toString(), body));
+            }
 
-        return payload;
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                try (response) {
+                    if (response.isSuccessful()) {
+                        log.debug("Successfully uploaded {}", description);
+                    } else if (response.code() >= 500) {
+                        log.debug("Upload of {} failed with status {}, keeping it in the outbox", description, response.code());
+                        executor.execute(() -> outbox.appendRequest(route.toString(), body));
+                    } else {
+                        log.error("Upload of {} failed with status {}", description, response.code());
+                    }
+                }
+            }
+        });
     }
 
-    @NonNull
-    private JsonObject getMinigamePayload(String minigame, String message) {
-        var user = client.getLocalPlayer().getName();
-        var world = client.getWorld();
-        List<Player> players = getSurroundingPlayers();
-
-        // convert List<Player> to JSON
-        JsonArray playersJson = new JsonArray();
-        for (Player player : players) {
-            JsonObject playerJson = new JsonObject();
-            playerJson.addProperty("name", player.getName());
-            playersJson.add(playerJson);
+    @Override
+    public void replayRequest(String route, RequestBody body) {
+        APIRoutes apiRoute = APIRoutes.fromRoute(route);
+        if (apiRoute == null) {
+            log.warn("Dropping outbox record for unknown route {}", route);
+            return;
         }
-
-        JsonObject payload = new JsonObject();
-        payload.addProperty("minigame", minigame);
-        payload.addProperty("world", world);
-        payload.addProperty("message", message);
-        payload.addProperty("user", user);
-        payload.add("players", playersJson);
-        return payload;
+        upload(apiRoute, body, route + " from the outbox");
     }
 
     @NonNull
-    private JsonObject getRaidCompletionPayload(String raid, String message) {
-        var user = client.getLocalPlayer().getName();
+    private String[] getSurroundingPlayerNames() {
         List<Player> players = getSurroundingPlayers();
-
-        // convert List<Player> to JSON
-        JsonArray playersJson = new JsonArray();
-        for (Player player : players) {
-            JsonObject playerJson = new JsonObject();
-            playerJson.addProperty("name", player.getName());
-            playersJson.add(playerJson);
+        String[] names = new String[players.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = players.get(i).getName();
         }
-
-        JsonObject payload = new JsonObject();
-        payload.addProperty("raid", raid);
-        payload.addProperty("message", message);
-        payload.addProperty("user", user);
-        payload.add("players", playersJson);
-        return payload;
+        return names;
     }
 
     public CompletableFuture<JsonObject> getProfileAsync(String username, boolean isMemberInfoCall) {
         CompletableFuture<JsonObject> future = new CompletableFuture<>();
-        Request request = null;
-
-        if (isMemberInfoCall) {
-            request = new Request.Builder()
-                    .url(GET_MEMBER_INFO_ENDPOINT + '/' + username)
-                    .get()
-                    .build();
-        } else {
-            request = new Request.Builder()
-                    .url(GET_PROFILE_ENDPOINT + '/' + username)
-                    .get()
-                    .build();
-        }
+        APIRoutes route = isMemberInfoCall ? APIRoutes.GET_MEMBER_INFO : APIRoutes.GET_PROFILE;
+        Request request = embargoApi.newRequest(route, username)
+                .get()
+                .build();
 
-        okHttpClient.newCall(request).enqueue(new Callback() {
+        embargoApi.enqueue(route, request, new Callback() {
             @Override
             public void onFailure(@NonNull Call call, @NonNull IOException e) {
                 future.complete(new JsonObject()); // Complete with empty object on failure
@@ -372,9 +673,13 @@ public class DataManager {
         return future;
     }
 
-    private final AtomicBoolean apiFailureMode = new AtomicBoolean(false);
-    private final AtomicLong lastApiFailure = new AtomicLong(0);
-    private static final long API_RETRY_DELAY_MINUTES = 1;
+    /**
+     * @return whether the logged in account is known not to be registered. Turns false again
+     *         once the cached answer expires, so the next check asks the API.
+     */
+    public boolean isStoppedTryingForAccount() {
+        return System.currentTimeMillis() < stopTryingUntil;
+    }
 
     /**
      * Checks if a user is registered with Embargo asynchronously
@@ -387,502 +692,571 @@ public class DataManager {
             return;
         }
 
-        if (stopTryingForAccount.get()) {
-            callback.accept(false);
-            return;
-        }
-
-        if (isUsernameRegistered.get()) {
-            callback.accept(true);
-            return;
-        }
-
-        log.debug("Checking if {} is registered with Embargo", username);
-
-        // If we're in API failure mode, only retry after the delay period
-        long currentTime = Instant.now().getEpochSecond();
-        long failureTime = lastApiFailure.get();
-        long elapsedMinutes = TimeUnit.SECONDS.toMinutes(currentTime - failureTime);
-
-        if (apiFailureMode.get() && elapsedMinutes < API_RETRY_DELAY_MINUTES) {
-            log.debug("apiFailureMode is true, skipping execution for {} minute(s)", API_RETRY_DELAY_MINUTES);
-            callback.accept(false);
-            return;
-        }
-
-        apiFailureMode.set(false);
-
-        try {
-            Request request = new Request.Builder()
-                    .url(CHECK_REGISTRATION_ENDPOINT + "/" + username)
-                    .get()
-                    .build();
-
-            // Create a client with shorter timeout for this specific check
-            OkHttpClient shortTimeoutClient = okHttpClient.newBuilder()
-                    .callTimeout(5, TimeUnit.SECONDS)
-                    .build();
-
-            shortTimeoutClient.newCall(request).enqueue(new Callback() {
-                @Override
-                public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                    log.error("Failed to check if {} is registered with Embargo's database", username);
-                    apiFailureMode.set(true);
-                    lastApiFailure.set(Instant.now().getEpochSecond());
-                    callback.accept(false);
-                }
-
-                @Override
-                public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                    try (response) {
-                        if (response.isSuccessful()) {
-                            String responseBody = response.body().string();
-                            JsonObject jsonResponse = gson.fromJson(responseBody, JsonObject.class);
-                            if (jsonResponse != null && jsonResponse.has("message") && "registered".equals(jsonResponse.get("message").getAsString())) {
-                                log.debug("{} is registered, return true", username);
-                                isUsernameRegistered.set(true);
-                                callback.accept(true);
-                            } else {
-                                log.debug("{} is NOT registered, return false", username);
-                                stopTryingForAccount.set(true);
-                                callback.accept(false);
-                            }
-                            apiFailureMode.set(false);
-
-                        } else {
-                            String responseBody = response.body().string();
-                            JsonObject jsonResponse = gson.fromJson(responseBody, JsonObject.class);
-                            if (jsonResponse != null && jsonResponse.has("message") && "not registered".equals(jsonResponse.get("message").getAsString())) {
-                                stopTryingForAccount.set(true);
-                                callback.accept(false);
-                                return;
-                            }
-                            log.error("Failed to check if {} is registered with Embargo's database. Status: {}",
-                                    username, response.code());
-                            apiFailureMode.set(true);
-                            lastApiFailure.set(Instant.now().getEpochSecond());
-                            callback.accept(false);
-                            isUsernameRegistered.set(false);
-                        }
+        registrationCache.lookup(username).thenAccept(registration -> {
+            boolean registered = registration == RegistrationCache.Registration.REGISTERED;
+            if (registered || registration == RegistrationCache.Registration.NOT_REGISTERED) {
+                long until = registered ? 0 : registrationCache.expiresAt(username);
+                clientThread.invoke(() -> {
+                    // The answer may arrive after switching to another account
+                    PlayerProfile current = account;
+                    if (current != null && username.equals(current.getUsername())) {
+                        stopTryingUntil = until;
                     }
-                }
-            });
-        } catch (Exception e) {
-            // Log once and enter failure mode
-            if (!apiFailureMode.get()) {
-                log.error("Failed to check if user is registered. API may be down. Will retry in {} minutes.",
-                        API_RETRY_DELAY_MINUTES, e);
-                apiFailureMode.set(true);
-                lastApiFailure.set(Instant.now().getEpochSecond());
-                isUsernameRegistered.set(false);
+                });
             }
-            callback.accept(false);
-        }
+            callback.accept(registered);
+        });
     }
 
 
     public void uploadLoot(LootReceived event) {
-        JsonObject payload = getJsonObject(event);
+        LootBody body = getLootBody(event);
 
-        log.debug("Uploading payload: " + payload);
-
-        Request request = new Request.Builder()
-                .url(SUBMIT_LOOT_ENDPOINT)
-                .post(RequestBody.create(JSON, payload.toString()))
-                .build();
-
-        okHttpClient.newCall(request).enqueue(new Callback() {
-            @Override
-            public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                log.error("Error uploading loot", e);
-            }
+        log.debug("Uploading {} item stacks from {}", body.getItemCount(), body.getBossName());
 
-            @Override
-            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                if (response.isSuccessful()) {
-                    log.debug("Loot uploaded successfully");
-                } else {
-                    log.error("Loot upload failed with status " + response.code());
-                }
-                response.close();
-            }
-        });
+        upload(APIRoutes.SUBMIT_LOOT, body, "loot");
     }
 
     @NonNull
-    private JsonObject getJsonObject(LootReceived event) {
+    private LootBody getLootBody(LootReceived event) {
         Collection<ItemStack> itemStacks = event.getItems();
 
-        var user = client.getLocalPlayer().getName();
-        List<Player> players = getSurroundingPlayers();
-
-        // convert List<Player> to JSON
-        JsonArray playersJson = new JsonArray();
-        for (Player player : players) {
-            JsonObject playerJson = new JsonObject();
-            playerJson.addProperty("name", player.getName());
-            playersJson.add(playerJson);
-        }
-
-        // convert itemStacks to JSON using gson
-        JsonArray itemStacksJson = new JsonArray();
+        // Item prices and names have to be looked up here on the client thread, the body is
+        // written later on an OkHttp thread
+        int[] ids = new int[itemStacks.size()];
+        int[] quantities = new int[ids.length];
+        int[] prices = new int[ids.length];
+        String[] names = new String[ids.length];
+        int i = 0;
         for (ItemStack itemStack : itemStacks) {
-            JsonObject itemStackJson = new JsonObject();
-            itemStackJson.addProperty("id", itemStack.getId());
-            itemStackJson.addProperty("quantity", itemStack.getQuantity());
-            itemStackJson.addProperty("price", itemManager.getItemPrice(itemStack.getId()));
-            itemStackJson.addProperty("name", itemManager.getItemComposition(itemStack.getId()).getName());
-
-            itemStacksJson.add(itemStackJson);
+            ids[i] = itemStack.getId();
+            quantities[i] = itemStack.getQuantity();
+            prices[i] = itemManager.getItemPrice(itemStack.getId());
+            names[i] = itemManager.getItemComposition(itemStack.getId()).getName();
+            i++;
         }
 
-        // convert json array to String
-        String itemStacksJsonString = itemStacksJson.toString();
-
-        // build payload with bossName and itemStacks
-        JsonObject payload = new JsonObject();
-        payload.addProperty("bossName", event.getName());
-        payload.addProperty("user", user);
-        payload.addProperty("itemStacks", itemStacksJsonString);
-        payload.add("players", playersJson);
-        return payload;
+        return new LootBody(event.getName(), client.getLocalPlayer().getName(), getSurroundingPlayerNames(),
+                ids, quantities, prices, names);
     }
 
-    public void storeVarbitChangedIfNotStored(int varbIndex, int varbValue) {
-        synchronized (this) {
-            if (!varbData.containsKey(varbIndex))
-                this.storeVarbitChanged(varbIndex, varbValue);
-        }
+    public void storeVarpChanged(int varpIndex, int varpValue) {
+        captureVarp(varpIndex, varpValue);
+        onChangeCaptured();
     }
 
-    public void storeVarpChanged(int varpIndex, int varpValue) {
-        synchronized (this) {
-            varpData.put(varpIndex, varpValue);
+    /**
+     * Captures a stat update. Updates that change neither the real level nor the experience,
+     * such as boosts wearing off, are dropped.
+     */
+    public void storeSkillChanged(Skill skill, int level, int xp) {
+        if (captureSkill(skill, level, xp)) {
+            onChangeCaptured();
         }
     }
 
-    public void storeVarpChangedIfNotStored(int varpIndex, int varpValue) {
-        synchronized (this) {
-            if (!varpData.containsKey(varpIndex))
-                this.storeVarpChanged(varpIndex, varpValue);
+    // Values equal to the snapshot of the current profile are already on their way to the
+    // server and are not captured again
+    private void captureVarbit(int varbitId, int value) {
+        if (retained.putVarbit(varbitId, value)) {
+            changes.storeVarbit(varbitId, value);
         }
     }
 
-    public void storeSkillChanged(String skill, int skillLevel) {
-        synchronized (this) {
-            levelData.put(skill, skillLevel);
+    private void captureVarp(int varpId, int value) {
+        if (retained.putVarp(varpId, value)) {
+            changes.storeVarp(varpId, value);
         }
     }
 
-    public void storeSkillChangedIfNotChanged(String skill, int skillLevel) {
-        synchronized (this) {
-            if (!levelData.containsKey(skill))
-                storeSkillChanged(skill, skillLevel);
+    private boolean captureSkill(Skill skill, int level, int xp) {
+        if (retained.putSkill(skill, level, xp)) {
+            changes.storeSkill(skill, level, xp);
+            return true;
         }
+        return false;
     }
 
-    private <K, V> HashMap<K, V> clearChanges(HashMap<K, V> h) {
-        HashMap<K, V> temp;
-        synchronized (this) {
-            if (h.isEmpty()) {
-                return new HashMap<>();
-            }
-            temp = new HashMap<>(h);
-            h.clear();
+    private void onChangeCaptured() {
+        FlushScheduler scheduler = flushScheduler;
+        if (scheduler != null) {
+            scheduler.onCapture();
         }
-        return temp;
     }
 
     public void clearData() {
-        synchronized (this) {
-            varbData.clear();
-            varpData.clear();
-            levelData.clear();
-        }
+        clientThread.invoke(() -> {
+            changes.clear();
+            restoredRecords.clear();
+            // The dropped changes may be in the snapshot, so the next read must capture everything
+            VarSnapshot fresh = new VarSnapshot();
+            PlayerProfile current = account;
+            if (current != null) {
+                snapshots.put(current, fresh);
+            }
+            retained = fresh;
+        });
     }
 
     private boolean hasDataToPush() {
-        return !(varbData.isEmpty() && varpData.isEmpty() && levelData.isEmpty());
+        return changes.hasPending();
     }
 
-    private JsonObject convertToJson() {
-        JsonObject j = new JsonObject();
-        JsonObject parent = new JsonObject();
-        // We need to synchronize this to handle the case where the RuneScapeProfileType
-        // changes
-        synchronized (this) {
-            RuneScapeProfileType r = RuneScapeProfileType.getCurrent(client);
-            HashMap<Integer, Integer> tempVarbData = clearChanges(varbData);
-            HashMap<Integer, Integer> tempVarpData = clearChanges(varpData);
-            HashMap<String, Integer> tempLevelData = clearChanges(levelData);
+    // On the client thread, so the changes drained are exactly those captured for the profile
+    private VarSubmission drain(PlayerProfile profile) {
+        return changes.drain(profile.getUsername(), profile.getProfileType().name(),
+                manifestManager.getLastCheckedManifestVersion());
+    }
 
-            j.add("varb", gson.toJsonTree(tempVarbData));
-            j.add("varp", gson.toJsonTree(tempVarpData));
-            j.add("level", gson.toJsonTree(tempLevelData));
+    // The outbox records a submission just drained holds the changes of
+    private long[] takeRestoredRecords() {
+        long[] records = restoredRecords.stream().mapToLong(Long::longValue).toArray();
+        restoredRecords.clear();
+        return records;
+    }
 
-            parent.addProperty("username", client.getLocalPlayer().getName());
-            parent.addProperty("profile", r.name());
-            parent.addProperty("version", manifestManager.getLastCheckedManifestVersion());
-            parent.add("data", j);
-        }
-        return parent;
+    // Undelivered submissions always go to the outbox so a crash cannot lose them, replacing
+    // the records they were merged from. While the same account is still logged in they are
+    // merged back into memory as well, and the flush that delivers them clears their record
+    // from the outbox again. The outbox is written on the executor, the returned future
+    // completes once it has been.
+    private CompletableFuture<Void> keepVarSubmission(VarSubmission submission, long[] records) {
+        return CompletableFuture.supplyAsync(() -> outbox.replaceVars(records, submission), executor)
+                .thenAccept(record -> restoreIfCurrent(submission, record));
     }
 
-    private void restoreData(JsonObject jObj) {
-        synchronized (this) {
-            if (!jObj.get("profile").getAsString().equals(RuneScapeProfileType.getCurrent(client).name())) {
-                log.error("Not restoring data from failed call since the profile type has changed");
-                return;
-            }
-            JsonObject dataObj = jObj.getAsJsonObject("data");
-            JsonObject varbObj = dataObj.getAsJsonObject("varb");
-            JsonObject varpObj = dataObj.getAsJsonObject("varp");
-            JsonObject levelObj = dataObj.getAsJsonObject("level");
-            for (String k : varbObj.keySet()) {
-                this.storeVarbitChangedIfNotStored(Integer.parseInt(k), varbObj.get(k).getAsInt());
-            }
-            for (String k : varpObj.keySet()) {
-                this.storeVarpChangedIfNotStored(Integer.parseInt(k), varpObj.get(k).getAsInt());
-            }
-            for (String k : levelObj.keySet()) {
-                this.storeSkillChangedIfNotChanged(k, levelObj.get(k).getAsInt());
+    // Checked on the client thread, so the account cannot switch between the check and the
+    // restore and hand the changes to another account
+    private void restoreIfCurrent(VarSubmission submission, long record) {
+        clientThread.invoke(() -> {
+            if (isCurrentAccount(submission)) {
+                changes.restore(submission);
+                if (record != Outbox.NO_RECORD) {
+                    restoredRecords.add(record);
+                }
             }
-        }
+        });
     }
 
-    protected void submitToAPI() {
-        if (!hasDataToPush() || client.getLocalPlayer() == null || client.getLocalPlayer().getName() == null || stopTryingForAccount.get())
-            return;
+    private boolean isCurrentAccount(VarSubmission submission) {
+        return profileOf(submission).equals(account);
+    }
 
-        if (RuneScapeProfileType.getCurrent(client) != RuneScapeProfileType.STANDARD)
+    private void submitToAPI(FlushScheduler.FlushReason reason, Runnable done) {
+        PlayerProfile current = account;
+        if (!hasDataToPush() || !canSubmit(current)) {
+            done.run();
             return;
+        }
 
-        isUserRegisteredAsync(client.getLocalPlayer().getName(), isRegistered -> {
+        isUserRegisteredAsync(current.getUsername(), isRegistered -> {
             if (!isRegistered) {
+                done.run();
                 return;
             }
 
-        if (client.getGameState() == GameState.LOGIN_SCREEN || client.getGameState() == GameState.HOPPING) {
-            return;
+            clientThread.invoke(() -> {
+                GameState gameState = client.getGameState();
+                if (gameState == GameState.LOGIN_SCREEN || gameState == GameState.HOPPING || !current.equals(account)) {
+                    done.run();
+                    return;
+                }
+
+                try {
+                    VarSubmission submission = drain(current);
+                    if (submission == null) {
+                        done.run();
+                        return;
+                    }
+
+                    sendVarSubmission(submission, takeRestoredRecords(), EmbargoApi.CallTag.REGULAR,
+                            outcome -> done.run());
+                } catch (Exception e) {
+                    log.error("Error preparing data for API submission", e);
+                    done.run();
+                }
+            });
+        });
+    }
+
+    /**
+     * @param records the outbox records the submission holds the changes of, discarded once it
+     *                is delivered
+     */
+    private void sendVarSubmission(VarSubmission submission, long[] records, EmbargoApi.CallTag tag,
+                                   Consumer<FlushOutcome> done) {
+        VarFormat format = varFormat;
+        long baseVersion = NO_SNAPSHOT_VERSION;
+        SnapshotStore.Acknowledged ack = acknowledged.get(profileOf(submission));
+        if (ack != null) {
+            baseVersion = ack.getVersion();
         }
+        long base = baseVersion;
 
-        try {
-            JsonObject payload = convertToJson();
-
-            okHttpClient.newCall(new Request.Builder().url(UNTRACKABLE_POST_ENDPOINT)
-                    .post(RequestBody.create(JSON, payload.toString())).build()).enqueue(new Callback() {
-                        @Override
-                        public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                            log.error(e.getLocalizedMessage());
-                            restoreData(payload);
-                            log.error("Failed to submit player in submitToAPI, restoring data. Cause of failure:", e);
-                        }
+        embargoApi.enqueue(APIRoutes.UNTRACKABLES, buildVarSubmissionRequest(submission, format, base, tag), new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                if (call.isCanceled()) {
+                    log.debug("Var submission cancelled, keeping data for the next attempt");
+                } else {
+                    log.error("Failed to submit player in submitToAPI, keeping data for the next attempt. Cause of failure:", e);
+                }
+                keepVarSubmission(submission, records)
+                        .whenComplete((kept, error) -> done.accept(FlushOutcome.WRITTEN_TO_DISK));
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                FlushOutcome outcome = FlushOutcome.WRITTEN_TO_DISK;
+                // The outcome is only reported once the outbox has been written
+                CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+                try (response) {
+                    if (format.isBinary() && response.code() == 415) {
+                        log.debug("{} submissions rejected, falling back to JSON", format.getHeaderValue());
+                        clientThread.invoke(() -> {
+                            varFormat = VarFormat.JSON;
+                        });
+                        written = keepVarSubmission(submission, records);
+                        return;
+                    }
 
-                        @Override
-                        public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                            if (response.isSuccessful()) {
-                                log.debug("Successfully uploaded untrackable items");
-                                response.close();
-                                return;
-                            } else {
-                                response.close();
-                                log.error("submitToAPI onResponse returned, but without success");
+                    VarFormat offered = VarFormat.fromHeader(response.header(VarFormat.FORMAT_HEADER));
+                    if (offered != null) {
+                        clientThread.invoke(() -> {
+                            if (offered != varFormat) {
+                                log.debug("Switching varbit submissions to {}", offered.getHeaderValue());
+                                varFormat = offered;
                             }
+                        });
+                    }
 
-                            response.close();
+                    if (response.code() == 409) {
+                        log.debug("Snapshot of {} diverged from the server, reading everything again", submission.getUsername());
+                        written = keepVarSubmission(submission, records);
+                        onSnapshotDiverged(submission);
+                        return;
+                    }
+
+                    if (response.isSuccessful()) {
+                        log.debug("Successfully uploaded untrackable items");
+                        outcome = FlushOutcome.FLUSHED;
+                        written = CompletableFuture.runAsync(() -> outbox.discardVars(records), executor);
+                        String acknowledgedVersion = response.header(EmbargoApi.SNAPSHOT_VERSION_HEADER);
+                        if (acknowledgedVersion != null) {
+                            clientThread.invoke(() -> acknowledge(submission, base, acknowledgedVersion));
                         }
-                    });
-        } catch (Exception e) {
-            log.error("Error preparing data for API submission", e);
-        }
-    });
+                    } else if (response.code() >= 500) {
+                        log.error("submitToAPI returned status {}, keeping data for the next attempt", response.code());
+                        written = keepVarSubmission(submission, records);
+                    } else {
+                        log.error("submitToAPI onResponse returned, but without success");
+                        outcome = FlushOutcome.LOST;
+                    }
+                } finally {
+                    FlushOutcome reported = outcome;
+                    written.whenComplete((kept, error) -> done.accept(reported));
+                }
+            }
+        });
     }
 
-    private HashSet<Integer> parseSet(JsonArray j) {
-        HashSet<Integer> h = new HashSet<>();
-        for (JsonElement jObj : j) {
-            h.add(jObj.getAsInt());
+    /**
+     * Replays var changes left in the outbox. Changes for the account that is logged in are
+     * merged into the next flush instead, so they can never overwrite anything newer.
+     */
+    @Override
+    public void replayVars(VarSubmission submission) {
+        PlayerProfile profile = replayedProfileOf(submission);
+        if (profile == null) {
+            log.warn("Skipping outbox vars of {} with unknown profile {}", submission.getUsername(), submission.getProfile());
+            return;
         }
-        return h;
+
+        clientThread.invoke(() -> {
+            if (profile.equals(account)) {
+                changes.restore(submission);
+                return;
+            }
+            sendVarSubmission(submission, new long[0], EmbargoApi.CallTag.REGULAR, outcome -> {
+            });
+        });
     }
 
-    public void loadInitialData() {
-        manifestManager.getLatestManifest();
+    // Outbox records come from disk and may name a profile type this client no longer knows,
+    // which must not stop the records after them from being replayed
+    private static PlayerProfile replayedProfileOf(VarSubmission submission) {
+        if (submission.getUsername() == null || submission.getProfile() == null) {
+            return null;
+        }
+        try {
+            return profileOf(submission);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 
-        for (int varbIndex : varbitsToCheck) {
-            storeVarbitChanged(varbIndex, client.getVarbitValue(varbIndex));
+    private Request buildVarSubmissionRequest(VarSubmission submission, VarFormat format, long baseVersion,
+                                              EmbargoApi.CallTag tag) {
+        Request.Builder request = embargoApi.newRequest(APIRoutes.UNTRACKABLES)
+                .tag(EmbargoApi.CallTag.class, tag)
+                .header(VarFormat.FORMAT_HEADER, format.getHeaderValue());
+        if (baseVersion != NO_SNAPSHOT_VERSION) {
+            request.header(EmbargoApi.SNAPSHOT_BASE_HEADER, Long.toString(baseVersion));
         }
 
-        for (int varpIndex : varpsToCheck) {
-            storeVarpChanged(varpIndex, client.getVarpValue(varpIndex));
+        if (!format.isBinary()) {
+            return request
+                    .header(VarFormat.ACCEPT_HEADER, VarFormat.ACCEPT_VALUE)
+                    .post(new VarSubmissionBody(submission))
+                    .build();
         }
-        for (Skill s : Skill.values()) {
-            storeSkillChanged(s.getName(), client.getRealSkillLevel(s));
+
+        if (format.isGzip()) {
+            request.header("Content-Encoding", "gzip");
         }
+        return request
+                .post(new VarintSubmissionBody(submission, format.isGzip()))
+                .build();
     }
 
-    // NEEDS TO BE MODIFIED TO USE NEW MANIFEST OBJECT STUFF
-    protected void getManifest() {
-        // log.debug("Getting manifest file...");
-        try {
-            Request r = new Request.Builder()
-                    .url(MANIFEST_ENDPOINT)
-                    .build();
-            okHttpClient.newCall(r).enqueue(new Callback() {
-                @Override
-                public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                    log.error("Error retrieving manifest", e);
+    /**
+     * Queues every tracked var and skill level that differs from the snapshot of the current
+     * account and profile for the next flush. The work is spread over client ticks by the job
+     * scheduler, see {@link VarSyncJob}.
+     */
+    public void loadInitialData() {
+        updateAccount();
+        jobScheduler.submit(VAR_SYNC_JOB, new VarSyncJob(true));
+    }
+
+    /**
+     * Resolves the tracked varbits into a new {@link VarbitIndex} a slice per step, then when
+     * asked reads the value of every tracked var and skill into the pending changes.
+     * <p>
+     * Varp values are read from the client on every step rather than from one snapshot, so a
+     * step never overwrites a newer value captured by {@link #onVarbitChanged} in between. If
+     * the manifest changes while the job runs it starts over with the new tracked vars.
+     */
+    private final class VarSyncJob implements ClientJobScheduler.Job {
+        private final boolean readValues;
+        private TrackedVars tracked;
+        private int[] varbits;
+        private VarbitIndex index;
+        private int cursor;
+
+        VarSyncJob(boolean readValues) {
+            this.readValues = readValues;
+        }
+
+        // Values acknowledged in an earlier session have to be in the snapshot before reading,
+        // or everything would be captured again
+        @Override
+        public boolean isReady() {
+            return !readValues || seeding.isDone();
+        }
+
+        @Override
+        public boolean step() {
+            TrackedVars current = trackedVars;
+            if (current != tracked) {
+                tracked = current;
+                varbits = current == null ? new int[0] : current.getVarbits();
+                index = current == null ? VarbitIndex.EMPTY : null;
+                cursor = 0;
+            }
+
+            if (index == null) {
+                int end = Math.min(cursor + VARBITS_PER_STEP, varbits.length);
+                for (; cursor < end; cursor++) {
+                    varbitIndexBuilder.prefetch(varbits[cursor], client::getVarbit);
                 }
+                if (cursor < varbits.length) {
+                    return false;
+                }
+                // Everything is resolved now, so the build only reads what prefetch remembered
+                index = varbitIndexBuilder.build(varbits, client::getVarbit);
+                varbitIndex = index;
+                indexedVars = tracked;
+                cursor = 0;
+                return !readValues;
+            }
 
-                @Override
-                public void onResponse(@NonNull Call call, @NonNull Response response) {
-                    if (response.isSuccessful()) {
-                        try {
-                            // We want to be able to change the varbs and varps we get on the fly. To do so,
-                            // we tell
-                            // the client what to send the server on startup via the manifest.
-                            if (response.body() == null) {
-                                log.error("Manifest request succeeded but returned empty body");
-                                response.close();
-                            }
+            if (cursor < index.varpCount()) {
+                int end = cursor + VARPS_PER_STEP;
+                index.readRange(client.getVarps(), cursor, end, DataManager.this::captureVarbit);
+                cursor = end;
+                return false;
+            }
 
-                            JsonObject j = gson.fromJson(response.body().string(), JsonObject.class);
-                            try {
-                                setVarbitsToCheck(parseSet(j.getAsJsonArray("varbits")));
-                                setVarpsToCheck(parseSet(j.getAsJsonArray("varps")));
-                                try {
-                                    int manifestVersion = j.get("version").getAsInt();
-                                    if (getLastManifestVersion() != manifestVersion) {
-                                        setLastManifestVersion(manifestVersion);
-                                        clientThread.invoke(() -> loadInitialData());
-                                    }
-                                } catch (UnsupportedOperationException | NullPointerException exception) {
-                                    setLastManifestVersion(-1);
-                                }
-                            } catch (NullPointerException e) {
-                                log.error("Manifest possibly missing varbits or varps entry from /manifest call");
-                                log.error(e.getLocalizedMessage());
-                            } catch (ClassCastException e) {
-                                log.error("Manifest from /manifest call might have varbits or varps as not a list");
-                                log.error(e.getLocalizedMessage());
-                            }
-                        } catch (IOException | JsonSyntaxException e) {
-                            log.error(e.getLocalizedMessage());
-                        } finally {
-                            response.close();
-                        }
-                    } else {
-                        log.error("Manifest request returned with status " + response.code());
-                        if (response.body() == null) {
-                            log.error("Manifest request returned empty body");
-                        } else {
-                            log.error(response.body().toString());
-                        }
+            if (tracked != null) {
+                int[] varps = client.getVarps();
+                tracked.forEachVarp(varpIndex -> {
+                    if (varpIndex < varps.length) {
+                        captureVarp(varpIndex, varps[varpIndex]);
                     }
-                    response.close();
-                }
-            });
-        } catch (IllegalArgumentException e) {
-            log.error("Bad URL given: " + e.getLocalizedMessage());
+                });
+            }
+            for (Skill s : Skill.values()) {
+                captureSkill(s, client.getRealSkillLevel(s), client.getSkillExperience(s));
+            }
+            onChangeCaptured();
+            return true;
         }
     }
 
-    // NEEDS TO BE MODIFIED TO USE NEW MANIFEST OBJECT STUFF
-    protected int getVersion() {
-        // log.debug("Attempting to get manifest version...");
-        Request request = new Request.Builder()
-                .url(MANIFEST_ENDPOINT)
-                .build();
+    /**
+     * Takes the tracked vars of a new manifest version. The first manifest reads every tracked
+     * var, later ones only what they add.
+     */
+    @Subscribe
+    public void onManifestChanged(ManifestChanged event) {
+        TrackedVars previous = trackedVars;
+        TrackedVars next = event.getManifest().getTrackedVars();
+        if (next == previous) {
+            // The same manifest published again, once its rename tables were read
+            return;
+        }
+        trackedVars = next;
+        if (previous == null) {
+            loadInitialData();
+            return;
+        }
 
-        try {
-            okHttpClient.newCall(request).enqueue(new Callback() {
-                @Override
-                public void onFailure(@NonNull Call call, IOException e) {
-                    log.error("Error retrieving manifest", e);
-                }
+        // A sync that is already running picks up the new vars itself
+        if (!jobScheduler.isRunning(VAR_SYNC_JOB)) {
+            jobScheduler.submit(VAR_SYNC_JOB, new VarSyncJob(false));
+        }
+        applyTrackedVarsChange(previous, next);
+    }
 
-                @Override
-                public void onResponse(@NonNull Call call, Response response) throws IOException {
-                    if (response.isSuccessful()) {
-                        try {
-                            // We want to be able to change the varbs and varps we get on the fly. To do so,
-                            // we tell
-                            // the client what to send the server on startup via the manifest.
-                            if (response.body() == null) {
-                                log.error("Manifest request succeeded but returned empty body");
-                                response.close();
-                            }
+    /**
+     * Drops pending changes to ids the manifest stopped tracking and reads only the ids it
+     * started tracking, rather than every tracked var again. Must run on the client thread.
+     */
+    private void applyTrackedVarsChange(TrackedVars previous, TrackedVars next) {
+        int[] removedVarbits = previous.varbitsNotIn(next);
+        int[] removedVarps = previous.varpsNotIn(next);
+        changes.discard(removedVarbits, removedVarps);
+
+        int[] addedVarbits = next.varbitsNotIn(previous);
+        int[] addedVarps = next.varpsNotIn(previous);
+        log.debug("Manifest {} tracks {} more varbits and {} more varps, and {} varbits and {} varps fewer",
+                next.getManifestVersion(), addedVarbits.length, addedVarps.length, removedVarbits.length, removedVarps.length);
+        if (addedVarbits.length > 0 || addedVarps.length > 0) {
+            jobScheduler.submit("added vars " + (++addedVarsJobs), new AddedVarsJob(addedVarbits, addedVarps));
+        }
+    }
 
-                            JsonObject j = gson.fromJson(response.body().string(), JsonObject.class);
-
-                            try {
-                                try {
-                                    int manifestVersion = j.get("version").getAsInt();
-                                    if (manifestManager.getLatestManifest().getVersion() != manifestVersion) {
-                                        // update to use new manifest stuff
-                                        clientThread.invoke(() -> loadInitialData());
-                                    }
-                                } catch (UnsupportedOperationException | NullPointerException exception) {
-                                    setLastManifestVersion(-1);
-                                }
-                            } catch (NullPointerException | ClassCastException e) {
-                                log.error(e.getLocalizedMessage());
-                            }
-                        } catch (IOException | JsonSyntaxException e) {
-                            log.error(e.getLocalizedMessage());
-                        } finally {
-                            response.close();
-                        }
-                    } else {
-                        log.error("Manifest request returned with status " + response.code());
-                        if (response.body() == null) {
-                            log.error("Manifest request returned empty body");
-                        } else {
-                            log.error(response.body().toString());
-                        }
+    /**
+     * Reads varbits and varps newly tracked by a manifest, a slice of varbits per step.
+     * <p>
+     * Waits until the varbit index covering them is published. Before that onGameTick diffs
+     * their varps with the old index and moves oldVarps on, so a change in between would be
+     * missed by both if the values were read any earlier.
+     */
+    private final class AddedVarsJob implements ClientJobScheduler.Job {
+        private final int[] varbits;
+        private final int[] varps;
+        private int cursor;
+
+        AddedVarsJob(int[] varbits, int[] varps) {
+            this.varbits = varbits;
+            this.varps = varps;
+        }
+
+        @Override
+        public boolean isReady() {
+            return indexedVars == trackedVars;
+        }
+
+        @Override
+        public boolean step() {
+            // A newer manifest may have dropped some of them again meanwhile
+            TrackedVars tracked = trackedVars;
+            if (tracked == null) {
+                return true;
+            }
+
+            if (cursor < varbits.length) {
+                int end = Math.min(cursor + VARBITS_PER_STEP, varbits.length);
+                for (; cursor < end; cursor++) {
+                    if (tracked.isVarbitTracked(varbits[cursor])) {
+                        captureVarbit(varbits[cursor], client.getVarbitValue(varbits[cursor]));
                     }
-                    response.close();
                 }
-            });
-        } catch (IllegalArgumentException e) {
-            log.error("asd");
+                return false;
+            }
+
+            for (int varpId : varps) {
+                if (tracked.isVarpTracked(varpId)) {
+                    captureVarp(varpId, client.getVarpValue(varpId));
+                }
+            }
+            onChangeCaptured();
+            return true;
         }
-        return -1;
     }
 
+    // Only marks the varp, the diff against oldVarps runs once per varp on the next game tick
+    // so a burst of changes within a tick collapses into its final value
     @Subscribe
     public void onVarbitChanged(VarbitChanged varbitChanged) {
-        if (client == null || varbitsToCheck == null || varpsToCheck == null)
+        if (client == null || trackedVars == null)
             return;
         if (oldVarps == null)
             setupVarpTracking();
+        dirtyVarps.mark(varbitChanged.getVarpId());
+    }
+
+    @Subscribe
+    public void onGameTick(GameTick gameTick) {
+        updateAccount();
 
-        int varpIndexChanged = varbitChanged.getVarpId();
-        if (varpsToCheck.contains(varpIndexChanged)) {
-            storeVarpChanged(varpIndexChanged, client.getVarpValue(varpIndexChanged));
+        TrackedVars tracked = trackedVars;
+        if (dirtyVarps.isEmpty()) {
+            return;
         }
-        for (Integer i : varpToVarbitMapping.get(varpIndexChanged)) {
-            if (!varbitsToCheck.contains(i))
-                continue;
-            // For each varbit index, see if it changed.
-            int oldValue = client.getVarbitValue(oldVarps, i);
-            int newValue = client.getVarbitValue(i);
-            if (oldValue != newValue)
-                storeVarbitChanged(i, newValue);
+        if (tracked == null) {
+            dirtyVarps.clear();
+            return;
+        }
+
+        long captured = changes.changeCount();
+        VarbitIndex index = varbitIndex;
+        int[] varps = client.getVarps();
+        dirtyVarps.drain(varpId -> {
+            if (varpId >= varps.length || varpId >= oldVarps.length)
+                return;
+            int varpValue = varps[varpId];
+            int oldValue = oldVarps[varpId];
+            if (varpValue == oldValue)
+                return;
+            if (tracked.isVarpTracked(varpId)) {
+                captureVarp(varpId, varpValue);
+            }
+
+            // One XOR against the tracked bits of this varp tells us whether any tracked varbit
+            // changed, and which ones, without reading varbit values from the client
+            int changedBits = (oldValue ^ varpValue) & index.mask(varpId);
+            if (changedBits != 0) {
+                for (int i = index.start(varpId), end = index.end(varpId); i < end; i++) {
+                    if ((changedBits & index.fieldMaskAt(i)) != 0)
+                        captureVarbit(index.varbitAt(i), index.valueAt(i, varpValue));
+                }
+            }
+            oldVarps[varpId] = varpValue;
+        });
+        if (changes.changeCount() != captured) {
+            onChangeCaptured();
         }
-        oldVarps[varpIndexChanged] = client.getVarpValue(varpIndexChanged);
     }
 
     // Need to keep track of old varps and what varps each varb is in.
     // On change
     // Get varp, if varp in hashset, queue it.
-    // Get each varb index in varp. If varb changed and varb in hashset, queue it.
+    // Get each tracked varb index in varp. If varb changed, queue it.
     // Checking if varb has changed requires us to keep track of old varps
     private void setupVarpTracking() {
-        final int VARBITS_ARCHIVE_ID = 14;
-        // Init stuff to keep track of varb changes
-        varpToVarbitMapping.clear();
-
         if (oldVarps == null) {
             oldVarps = new int[client.getVarps().length];
         }
@@ -890,59 +1264,18 @@ public class DataManager {
         // Set oldVarps to be the current varps
         System.arraycopy(client.getVarps(), 0, oldVarps, 0, oldVarps.length);
 
-        // For all varbits, add their ids to the multimap with the varp index as their
-        // key
-        clientThread.invoke(() -> {
-            if (client.getIndexConfig() == null) {
-                return false;
-            }
-            IndexDataBase indexVarbits = client.getIndexConfig();
-            final int[] varbitIds = indexVarbits.getFileIds(VARBITS_ARCHIVE_ID);
-            for (int id : varbitIds) {
-                VarbitComposition varbit = client.getVarbit(id);
-                if (varbit != null) {
-                    varpToVarbitMapping.put(varbit.getIndex(), id);
-                }
-            }
-            return true;
-        });
-    }
-
-    @Schedule(period = 5 * 60, unit = ChronoUnit.SECONDS, asynchronous = true)
-    public void resyncManifest() {
-        // log.debug("Attempting to resync manifest");
-        if (manifestManager.getManifest().getVersion() != getLastManifestVersion()) {
-            getManifest();
-        }
+        rebuildVarbitIndex();
     }
 
-    @Schedule(period = 10, unit = ChronoUnit.SECONDS, asynchronous = true)
-    public void scheduledSubmit() {
-        if (stopTryingForAccount.get()) {
+    // Only the tracked varbits are resolved, and only the ones a previous build has not
+    // already seen. Must run on the client thread.
+    private void rebuildVarbitIndex() {
+        TrackedVars tracked = trackedVars;
+        if (tracked == null) {
             return;
         }
-        if (client != null
-                && (client.getGameState() != GameState.HOPPING && client.getGameState() != GameState.LOGIN_SCREEN)) {
-            submitToAPI();
-            if (client.getLocalPlayer() != null) {
-                String username = client.getLocalPlayer().getName();
-
-                isUserRegisteredAsync(username, isRegistered -> {
-                    if (isRegistered) {
-                        embargoPanel.updateLoggedIn(true);
-                    } else {
-                        embargoPanel.isLoggedIn = false;
-                        embargoPanel.updateLoggedIn(false);
-                        embargoPanel.logOut();
-                    }
-                });
-            }
-        } else {
-            // log.debug("User is hopping or logged out, do not send data");
-            embargoPanel.isLoggedIn = false;
-            embargoPanel.updateLoggedIn(false);
-            embargoPanel.logOut();
-        }
+        varbitIndex = varbitIndexBuilder.build(tracked.getVarbits(), client::getVarbit);
+        indexedVars = tracked;
     }
 
 }
\ No newline at end of file
@@ -1,9 +1,11 @@
 package gg.embargo;
 
 import com.google.inject.Provides;
+import gg.embargo.api.EmbargoApi;
 import gg.embargo.collections.*;
 import gg.embargo.commands.CommandManager;
 import gg.embargo.eastereggs.NPCRenameManager;
+import gg.embargo.manifest.CompiledManifest;
 import gg.embargo.manifest.ManifestManager;
 import gg.embargo.ui.EmbargoPanel;
 import gg.embargo.eastereggs.ItemRenameManager;
@@ -33,10 +35,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.time.temporal.ChronoUnit;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -93,12 +92,13 @@ public class EmbargoPlugin extends Plugin {
 	@Inject
 	public CommandManager commandManager;
 
+	@Inject
+	private EmbargoApi embargoApi;
+
 	private RuneScapeProfileType lastProfile;
 
 	private NavigationButton navButton;
 
-	private final Map<String, Integer> skillLevelCache = new HashMap<>();
-
 	AtomicBoolean isUsernameRegistered = new AtomicBoolean(false);
 
 	@Provides
@@ -110,7 +110,7 @@ public class EmbargoPlugin extends Plugin {
 	protected void startUp() {
 		log.info("Embargo Clan plugin started!");
 
-		if (dataManager.stopTryingForAccount.get()) {
+		if (dataManager.isStoppedTryingForAccount()) {
 			return;
 		}
 
@@ -119,10 +119,17 @@ public class EmbargoPlugin extends Plugin {
 
 		lastProfile = null;
 		dataManager.resetVarbsAndVarpsToCheck();
-		skillLevelCache.clear();
-		dataManager.getManifest();
+		dataManager.startUp();
 
-		itemRenameManager.setupMenuRenames();
+		// Features work off the last session's manifest until the API has been asked. Read
+		// once everything listening for ManifestChanged is registered
+		manifestManager.loadFromDisk();
+		manifestManager.refresh();
+
+		// Reading the renames loads them when they were skipped, so leave them be while unused
+		if (config.enableClanEasterEggs()) {
+			itemRenameManager.setupMenuRenames();
+		}
 
 		if (client != null) {
 			if (client.getGameState() == GameState.LOGGED_IN) {
@@ -175,6 +182,7 @@ public class EmbargoPlugin extends Plugin {
 	protected void shutDown() {
 		log.info("Embargo Clan plugin stopped!");
 
+		dataManager.shutDown();
 		dataManager.clearData();
 		embargoPanel.reset();
 		clientToolbar.removeNavigation(navButton);
@@ -201,20 +209,33 @@ public class EmbargoPlugin extends Plugin {
 		if (gameState == GameState.LOADING)
 			return;
 
+		if (gameState == GameState.LOGGED_IN) {
+			// Have the connection ready before the first loot or clog upload
+			embargoApi.prewarm();
+		}
+
 		if (gameState == GameState.LOGGED_IN && !embargoPanel.isLoggedIn) {
 			log.debug("inside of condition, handling loggedIn");
 			handleLoggedIn();
 		} else if (gameState == GameState.LOGIN_SCREEN) {
 			handleLoggedOut();
+		} else if (gameState == GameState.HOPPING) {
+			// The periodic flush holds off while hopping, so send what is pending now
+			dataManager.finalFlush("world hop", false);
 		}
 	}
 
 	private void handleLoggedIn() {
 		clientThread.invokeLater(() -> {
-			if (client == null || dataManager.stopTryingForAccount.get()) {
+			if (client == null) {
 				return false;
 			}
 
+			// Not registered, checkRegistrationStatus asks again once that answer expires
+			if (dataManager.isStoppedTryingForAccount()) {
+				return true;
+			}
+
 			if (isUsernameRegistered.get()) {
 				embargoPanel.updateLoggedIn(true);
 				return true;
@@ -251,32 +272,28 @@ public class EmbargoPlugin extends Plugin {
 			embargoPanel.updateLoggedIn(false);
 		}
 
-		// Clear data in DataManager to ensure complete reset
-		dataManager.clearData();
+		// Send anything not flushed yet one last time, whatever does not make it ends up in the
+		// outbox. This also leaves DataManager without an account
+		dataManager.finalFlush("logout", true);
 
-		// Reset skill cache
-		skillLevelCache.clear();
+		// The next login may be a different account
+		isUsernameRegistered.set(false);
 	}
 
 	@Schedule(period = SECONDS_BETWEEN_UPLOADS, unit = ChronoUnit.SECONDS, asynchronous = true)
 	public void ensureLatestManifest() {
-		if (manifestManager.getLatestManifest() != null) {
-			if (!(manifestManager.getLastCheckedManifestVersion() == manifestManager.getLatestManifest()
-					.getVersion())) {
-				manifestManager.getLatestManifest();
-			}
-		}
+		manifestManager.refresh();
 	}
 
 	@Schedule(period = SECONDS_BETWEEN_UPLOADS, unit = ChronoUnit.SECONDS, asynchronous = true)
-	public void submitToAPI() {
+	public void checkRegistrationStatus() {
 		if (client == null) {
 			return;
 		}
 
+		// Varbit, varp and level submissions are flushed by DataManager's FlushScheduler
 		GameState gameState = client.getGameState();
 		if (gameState != GameState.HOPPING && gameState != GameState.LOGIN_SCREEN) {
-			dataManager.submitToAPI();
 			updatePlayerRegistrationStatus();
 		} else {
 			// log.debug("User is hopping or logged out, do not send data");
@@ -285,7 +302,7 @@ public class EmbargoPlugin extends Plugin {
 	}
 
 	private void updatePlayerRegistrationStatus() {
-		if (dataManager.stopTryingForAccount.get()) {
+		if (dataManager.isStoppedTryingForAccount()) {
 			return;
 		}
 		Player localPlayer = client.getLocalPlayer();
@@ -311,7 +328,8 @@ public class EmbargoPlugin extends Plugin {
 
 	@Subscribe
 	public void onChatMessage(ChatMessage chatMessage) {
-		if (client == null || manifestManager.getLatestManifest() == null)
+		CompiledManifest manifest = manifestManager.getManifest();
+		if (client == null || manifest == null)
 			return;
 
 		Player player = client.getLocalPlayer();
@@ -342,31 +360,21 @@ public class EmbargoPlugin extends Plugin {
 				messageType == ChatMessageType.FRIENDSCHATNOTIFICATION ||
 				messageType == ChatMessageType.SPAM) {
 
-			if (processCompletionMessages(manifestManager.getLatestManifest().getRaidCompletionMessages(), message,
-					(name, _message) -> dataManager.uploadRaidCompletion(name, _message))) {
+			String raid = manifest.getRaidCompletions().match(message);
+			if (raid != null) {
+				log.debug("Sending API request for completed activity");
+				dataManager.uploadRaidCompletion(raid, message);
 				// return early as it saves time in case it gets processed here, otherwise it's
 				// most likely a minigame completion message or unrelated
 				return;
 			}
 
-			processCompletionMessages(manifestManager.getLatestManifest().minigameCompletionMessages, message,
-					(name, _message) -> dataManager.uploadMinigameCompletion(name, _message));
-		}
-	}
-
-	private boolean processCompletionMessages(Map<String, String> messageMap, String chatMessage,
-			BiConsumer<String, String> uploadAction) {
-		for (Map.Entry<String, String> entry : messageMap.entrySet()) {
-			String name = entry.getKey();
-			String completionMessage = entry.getValue();
-
-			if (chatMessage.contains(completionMessage)) {
+			String minigame = manifest.getMinigameCompletions().match(message);
+			if (minigame != null) {
 				log.debug("Sending API request for completed activity");
-				uploadAction.accept(name, chatMessage);
-				return true;
+				dataManager.uploadMinigameCompletion(minigame, message);
 			}
 		}
-		return false;
 	}
 
 	public void checkProfileChange() {
@@ -376,15 +384,19 @@ public class EmbargoPlugin extends Plugin {
 
 		RuneScapeProfileType currentProfile = RuneScapeProfileType.getCurrent(client);
 		boolean isStandardProfile = currentProfile == RuneScapeProfileType.STANDARD;
-		boolean profileChanged = isStandardProfile && currentProfile != lastProfile;
-		boolean dataAvailable = dataManager.getVarbitsToCheck() != null && dataManager.getVarpsToCheck() != null;
+		boolean profileChanged = currentProfile != lastProfile;
+		boolean dataAvailable = dataManager.getTrackedVars() != null;
 		boolean isLoggedIn = client.getGameState() == GameState.LOGGED_IN;
 
-		if (profileChanged && dataAvailable && isLoggedIn) {
-			// Profile change, we should clear the dataManager and do a new initial dump
-			log.debug("Profile changed to standard. Reloading all data and updating profile");
-			lastProfile = currentProfile;
-			dataManager.clearData();
+		if (!profileChanged || !dataAvailable || !isLoggedIn) {
+			return;
+		}
+		lastProfile = currentProfile;
+
+		if (isStandardProfile) {
+			// Pending changes of the previous profile are parked by DataManager, and only what
+			// differs from the last snapshot of this profile gets captured
+			log.debug("Profile changed to standard. Capturing changes since it was last seen");
 			dataManager.loadInitialData();
 		}
 	}
@@ -396,14 +408,7 @@ public class EmbargoPlugin extends Plugin {
 			return;
 		}
 
-		String skillName = skill.getName();
-		int newLevel = statChanged.getLevel();
-		Integer cachedLevel = skillLevelCache.get(skillName);
-
-		if (cachedLevel == null || cachedLevel != newLevel) {
-			skillLevelCache.put(skillName, newLevel);
-			dataManager.storeSkillChanged(skillName, newLevel);
-		}
+		dataManager.storeSkillChanged(skill, statChanged.getLevel(), statChanged.getXp());
 	}
 
 	@Subscribe
@@ -451,6 +456,10 @@ public class EmbargoPlugin extends Plugin {
 				itemRenameManager.shutDown();
 				npcRenameManager.shutDown();
 			}
+		} else if (event.getKey().equals("enableItemRenames")) {
+			itemRenameManager.setupMenuRenames();
+		} else if (event.getKey().equals("enableNpcRenames")) {
+			npcRenameManager.setupMenuRenames();
 		}
 	}
 
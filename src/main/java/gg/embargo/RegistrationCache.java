@@ -0,0 +1,235 @@
+package gg.embargo;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
+import gg.embargo.DataManager.APIRoutes;
+import gg.embargo.api.EmbargoApi;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import net.runelite.client.RuneLite;
+import net.runelite.client.util.Text;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers per account whether it is registered with Embargo.
+ * <p>
+ * Answers are kept for {@link #REGISTERED_TTL_MS} when registered and
+ * {@link #NOT_REGISTERED_TTL_MS} when not, in memory and in a file of their own so a relog or
+ * client restart does not need a round trip. Concurrent lookups of the same account share a
+ * single request. When the API cannot be reached, lookups answer {@link Registration#UNKNOWN}
+ * without going to the network for {@link #FAILURE_BACKOFF_MS}.
+ */
+@Slf4j
+@Singleton
+public class RegistrationCache {
+
+    public enum Registration {
+        REGISTERED,
+        NOT_REGISTERED,
+        // The API could not be asked, nothing is cached
+        UNKNOWN,
+    }
+
+    static final long REGISTERED_TTL_MS = TimeUnit.HOURS.toMillis(12);
+    static final long NOT_REGISTERED_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long FAILURE_BACKOFF_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final File REGISTRATION_DIR = new File(RuneLite.RUNELITE_DIR, "embargo");
+    // One line per account: the account key, 1 or 0 for registered, and the expiry
+    private static final File REGISTRATION_FILE = new File(REGISTRATION_DIR, "registrations.txt");
+
+    private static final class Entry {
+        final boolean registered;
+        final long expiresAt;
+
+        Entry(boolean registered, long expiresAt) {
+            this.registered = registered;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    @Inject
+    private EmbargoApi embargoApi;
+
+    @Inject
+    private Gson gson;
+
+    // Filled from the file on first use
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+    private final Map<String, CompletableFuture<Registration>> inFlight = new ConcurrentHashMap<>();
+    private volatile long retryAfter;
+
+    public CompletableFuture<Registration> lookup(String username) {
+        String key = key(username);
+        long now = System.currentTimeMillis();
+
+        load();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt > now) {
+            return CompletableFuture.completedFuture(entry.registered ? Registration.REGISTERED : Registration.NOT_REGISTERED);
+        }
+
+        if (now < retryAfter) {
+            log.debug("Registration API unavailable, not checking {} for now", username);
+            return CompletableFuture.completedFuture(Registration.UNKNOWN);
+        }
+
+        CompletableFuture<Registration> request = new CompletableFuture<>();
+        CompletableFuture<Registration> existing = inFlight.putIfAbsent(key, request);
+        if (existing != null) {
+            return existing;
+        }
+        request.whenComplete((registration, e) -> inFlight.remove(key, request));
+        check(username, key, request);
+        return request;
+    }
+
+    private void check(String username, String key, CompletableFuture<Registration> result) {
+        log.debug("Checking if {} is registered with Embargo", username);
+
+        Request request = embargoApi.newRequest(APIRoutes.CHECKREGISTRATION, username)
+                .get()
+                .build();
+
+        embargoApi.enqueue(APIRoutes.CHECKREGISTRATION, request, new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                log.error("Failed to check if {} is registered with Embargo's database", username);
+                fail(result);
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
+                try (response) {
+                    String message = readMessage(response);
+                    if (response.isSuccessful()) {
+                        boolean registered = "registered".equals(message);
+                        log.debug("{} is {}registered", username, registered ? "" : "NOT ");
+                        store(key, registered);
+                        result.complete(registered ? Registration.REGISTERED : Registration.NOT_REGISTERED);
+                    } else if ("not registered".equals(message)) {
+                        store(key, false);
+                        result.complete(Registration.NOT_REGISTERED);
+                    } else {
+                        log.error("Failed to check if {} is registered with Embargo's database. Status: {}",
+                                username, response.code());
+                        fail(result);
+                    }
+                }
+            }
+        });
+    }
+
+    private String readMessage(Response response) throws IOException {
+        try {
+            JsonObject json = gson.fromJson(response.body().string(), JsonObject.class);
+            return json != null && json.has("message") ? json.get("message").getAsString() : null;
+        } catch (JsonSyntaxException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private void fail(CompletableFuture<Registration> result) {
+        retryAfter = System.currentTimeMillis() + FAILURE_BACKOFF_MS;
+        result.complete(Registration.UNKNOWN);
+    }
+
+    private void store(String key, boolean registered) {
+        long expiresAt = System.currentTimeMillis() + (registered ? REGISTERED_TTL_MS : NOT_REGISTERED_TTL_MS);
+        entries.put(key, new Entry(registered, expiresAt));
+        save();
+    }
+
+    /**
+     * @return when the cached answer for the account expires, or 0 if none is cached
+     */
+    public long expiresAt(String username) {
+        load();
+        Entry entry = entries.get(key(username));
+        return entry == null ? 0 : entry.expiresAt;
+    }
+
+    /**
+     * Reads the stored registrations. Blocking, meant to be called once off the client thread
+     * on start up. A lookup that comes first reads them itself.
+     */
+    void load() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!loaded) {
+                read();
+                loaded = true;
+            }
+        }
+    }
+
+    private void read() {
+        if (!REGISTRATION_FILE.exists()) {
+            return;
+        }
+
+        try (BufferedSource source = Okio.buffer(Okio.source(REGISTRATION_FILE))) {
+            String line;
+            while ((line = source.readUtf8Line()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 3) {
+                    continue;
+                }
+                try {
+                    entries.putIfAbsent(fields[0], new Entry(fields[1].equals("1"), Long.parseLong(fields[2])));
+                } catch (NumberFormatException e) {
+                    log.debug("Skipping malformed registration entry {}", line);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read the stored registrations", e);
+        }
+    }
+
+    // Rewrites every entry that has not expired yet. Blocking, called from OkHttp threads.
+    private synchronized void save() {
+        long now = System.currentTimeMillis();
+        File tmp = new File(REGISTRATION_DIR, REGISTRATION_FILE.getName() + ".tmp");
+        REGISTRATION_DIR.mkdirs();
+        try {
+            try (BufferedSink sink = Okio.buffer(Okio.sink(tmp))) {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    Entry value = entry.getValue();
+                    if (value.expiresAt > now) {
+                        sink.writeUtf8(entry.getKey()).writeUtf8(value.registered ? " 1 " : " 0 ")
+                                .writeDecimalLong(value.expiresAt).writeByte('\n');
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), REGISTRATION_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to store the registrations", e);
+        }
+    }
+
+    private static String key(String username) {
+        return Text.standardize(username).replace(' ', '_');
+    }
+}
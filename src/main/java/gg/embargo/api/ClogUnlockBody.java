@@ -0,0 +1,27 @@
+package gg.embargo.api;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Body for {@code collectionlog}, sent when a new collection log slot is unlocked.
+ */
+public class ClogUnlockBody extends JsonRequestBody {
+
+    private final String playerName;
+    private final String itemName;
+
+    public ClogUnlockBody(String playerName, String itemName) {
+        this.playerName = playerName;
+        this.itemName = itemName;
+    }
+
+    @Override
+    protected void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("playerName").value(playerName);
+        writer.name("itemName").value(itemName);
+        writer.endObject();
+    }
+}
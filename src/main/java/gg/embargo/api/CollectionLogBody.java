@@ -0,0 +1,51 @@
+package gg.embargo.api;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Body for the {@code runelite/uploadcollectionlog} route, the items seen in the collection log.
+ * <p>
+ * Each item is written as a single-key object of its name, as the API has always received it.
+ */
+public class CollectionLogBody extends JsonRequestBody {
+
+    private final String username;
+    private final String profile;
+    private final String[] itemNames;
+    private final int[] itemIds;
+    private final int[] quantities;
+
+    public CollectionLogBody(String username, String profile, String[] itemNames, int[] itemIds, int[] quantities) {
+        this.username = username;
+        this.profile = profile;
+        this.itemNames = itemNames;
+        this.itemIds = itemIds;
+        this.quantities = quantities;
+    }
+
+    public int getItemCount() {
+        return itemIds.length;
+    }
+
+    @Override
+    protected void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("username").value(username);
+        writer.name("profile").value(profile);
+        writer.name("data").beginObject();
+        writer.name("rawClogItems").beginArray();
+        for (int i = 0; i < itemIds.length; i++) {
+            writer.beginObject();
+            writer.name(itemNames[i]).beginObject();
+            writer.name("id").value(itemIds[i]);
+            writer.name("quantity").value(quantities[i]);
+            writer.endObject();
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.endObject();
+    }
+}
@@ -0,0 +1,50 @@
+package gg.embargo.api;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Body for the {@code raid} and {@code minigame} routes, sent when a completion message is
+ * seen in chat.
+ */
+public class CompletionBody extends JsonRequestBody {
+
+    private final String activityKey;
+    private final String activity;
+    private final Integer world;
+    private final String message;
+    private final String user;
+    private final String[] players;
+
+    private CompletionBody(String activityKey, String activity, Integer world, String message, String user, String[] players) {
+        this.activityKey = activityKey;
+        this.activity = activity;
+        this.world = world;
+        this.message = message;
+        this.user = user;
+        this.players = players;
+    }
+
+    public static CompletionBody raid(String raid, String message, String user, String[] players) {
+        return new CompletionBody("raid", raid, null, message, user, players);
+    }
+
+    public static CompletionBody minigame(String minigame, int world, String message, String user, String[] players) {
+        return new CompletionBody("minigame", minigame, world, message, user, players);
+    }
+
+    @Override
+    protected void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(activityKey).value(activity);
+        if (world != null) {
+            writer.name("world").value(world);
+        }
+        writer.name("message").value(message);
+        writer.name("user").value(user);
+        writer.name("players");
+        writePlayers(writer, players);
+        writer.endObject();
+    }
+}
@@ -0,0 +1,166 @@
+package gg.embargo.api;
+
+import gg.embargo.DataManager.APIRoutes;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one way requests reach the Embargo API.
+ * <p>
+ * All routes share a client derived from RuneLite's, with its own connection pool that keeps
+ * idle connections to embargo.gg alive for {@link #KEEP_ALIVE_MINUTES}, and HTTP/2 preferred so
+ * concurrent uploads multiplex over a single connection. Every call gets the timeout of its
+ * {@link APIRoutes route}.
+ */
+@Slf4j
+@Singleton
+public class EmbargoApi {
+
+    public static final String API_URI = "https://embargo.gg/api/";
+
+    /**
+     * Sent with var submissions: the snapshot version the server last acknowledged for the
+     * account. The server answers 409 when it holds a different one.
+     */
+    public static final String SNAPSHOT_BASE_HEADER = "X-Embargo-Snapshot-Base";
+
+    /**
+     * Returned on a successful var submission: the snapshot version it was acknowledged under.
+     */
+    public static final String SNAPSHOT_VERSION_HEADER = "X-Embargo-Snapshot-Version";
+
+    /**
+     * Sent with manifest requests: the manifest version the client holds, so the API can answer
+     * with a patch from it instead of the whole manifest.
+     */
+    public static final String MANIFEST_BASE_HEADER = "X-Embargo-Manifest-Base";
+
+    /**
+     * Carried by every request, so Embargo calls can be cancelled without touching those of
+     * other plugins sharing RuneLite's dispatcher.
+     */
+    public enum CallTag {
+        REGULAR,
+        // The last var submission on logout, world hop or shutdown
+        FINAL_FLUSH
+    }
+
+    private static final int KEEP_ALIVE_MINUTES = 5;
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+    private static final long PREWARM_TIMEOUT_SECONDS = 5;
+
+    @Inject
+    private OkHttpClient okHttpClient;
+
+    private volatile OkHttpClient client;
+    private volatile long lastPrewarm;
+
+    public Request.Builder newRequest(APIRoutes route) {
+        return new Request.Builder().url(API_URI + route).tag(CallTag.class, CallTag.REGULAR);
+    }
+
+    /**
+     * A request for a resource under the route, such as a username.
+     */
+    public Request.Builder newRequest(APIRoutes route, String path) {
+        return new Request.Builder().url(API_URI + route + '/' + path).tag(CallTag.class, CallTag.REGULAR);
+    }
+
+    public Call newCall(APIRoutes route, Request request) {
+        Call call = client().newCall(request);
+        call.timeout().timeout(route.getTimeoutSeconds(), TimeUnit.SECONDS);
+        return call;
+    }
+
+    public void enqueue(APIRoutes route, Request request, Callback callback) {
+        newCall(route, request).enqueue(callback);
+    }
+
+    /**
+     * Opens the TLS connection ahead of the first upload, so it does not pay for the handshake.
+     * Does nothing while a connection opened by an earlier call is still being kept alive.
+     */
+    public void prewarm() {
+        long now = System.currentTimeMillis();
+        if (now - lastPrewarm < TimeUnit.MINUTES.toMillis(KEEP_ALIVE_MINUTES)) {
+            return;
+        }
+        lastPrewarm = now;
+
+        Call call = client().newCall(new Request.Builder().url(API_URI).head().tag(CallTag.class, CallTag.REGULAR).build());
+        call.timeout().timeout(PREWARM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                log.debug("Failed to pre-warm the Embargo API connection", e);
+                lastPrewarm = 0;
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                // Only the connection matters, whatever the status
+                response.close();
+            }
+        });
+    }
+
+    /**
+     * Cancels queued and running Embargo calls, which fail with an {@link IOException} as if
+     * the connection dropped.
+     *
+     * @param tag the calls to cancel, or null for every Embargo call
+     * @return the number of calls cancelled
+     */
+    public int cancel(CallTag tag) {
+        Dispatcher dispatcher = client().dispatcher();
+        int cancelled = 0;
+        for (Call call : dispatcher.queuedCalls()) {
+            cancelled += cancelIfTagged(call, tag);
+        }
+        for (Call call : dispatcher.runningCalls()) {
+            cancelled += cancelIfTagged(call, tag);
+        }
+        return cancelled;
+    }
+
+    private static int cancelIfTagged(Call call, CallTag tag) {
+        CallTag callTag = call.request().tag(CallTag.class);
+        if (callTag == null || (tag != null && callTag != tag) || call.isCanceled()) {
+            return 0;
+        }
+        call.cancel();
+        return 1;
+    }
+
+    private OkHttpClient client() {
+        OkHttpClient tuned = client;
+        if (tuned == null) {
+            synchronized (this) {
+                tuned = client;
+                if (tuned == null) {
+                    tuned = okHttpClient.newBuilder()
+                            .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                            .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                            .retryOnConnectionFailure(true)
+                            .build();
+                    client = tuned;
+                }
+            }
+        }
+        return tuned;
+    }
+}
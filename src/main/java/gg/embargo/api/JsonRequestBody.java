@@ -0,0 +1,48 @@
+package gg.embargo.api;
+
+import com.google.gson.stream.JsonWriter;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request body that streams its JSON straight into the request sink instead of building a
+ * tree and a string first.
+ * <p>
+ * Implementations snapshot everything they need when they are created, so the body can be
+ * written again if OkHttp retries the call, and so no game state is read off the client
+ * thread.
+ */
+public abstract class JsonRequestBody extends RequestBody {
+
+    static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        // Not closed, closing the writer would close the sink OkHttp owns
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8));
+        writeJson(writer);
+        writer.flush();
+    }
+
+    protected abstract void writeJson(JsonWriter writer) throws IOException;
+
+    static void writePlayers(JsonWriter writer, String[] players) throws IOException {
+        writer.beginArray();
+        for (String player : players) {
+            writer.beginObject();
+            writer.name("name").value(player);
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+}
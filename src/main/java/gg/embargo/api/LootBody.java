@@ -0,0 +1,69 @@
+package gg.embargo.api;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Body for the {@code loot} route.
+ * <p>
+ * The API expects {@code itemStacks} as a JSON array encoded into a string, so that one
+ * field is still rendered to a string before being written.
+ */
+public class LootBody extends JsonRequestBody {
+
+    private final String bossName;
+    private final String user;
+    private final String[] players;
+    private final int[] itemIds;
+    private final int[] quantities;
+    private final int[] prices;
+    private final String[] itemNames;
+
+    public LootBody(String bossName, String user, String[] players, int[] itemIds, int[] quantities, int[] prices, String[] itemNames) {
+        this.bossName = bossName;
+        this.user = user;
+        this.players = players;
+        this.itemIds = itemIds;
+        this.quantities = quantities;
+        this.prices = prices;
+        this.itemNames = itemNames;
+    }
+
+    public String getBossName() {
+        return bossName;
+    }
+
+    public int getItemCount() {
+        return itemIds.length;
+    }
+
+    @Override
+    protected void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("bossName").value(bossName);
+        writer.name("user").value(user);
+        writer.name("itemStacks").value(itemStacksJson());
+        writer.name("players");
+        writePlayers(writer, players);
+        writer.endObject();
+    }
+
+    private String itemStacksJson() throws IOException {
+        StringWriter out = new StringWriter(64 * itemIds.length + 2);
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        for (int i = 0; i < itemIds.length; i++) {
+            writer.beginObject();
+            writer.name("id").value(itemIds[i]);
+            writer.name("quantity").value(quantities[i]);
+            writer.name("price").value(prices[i]);
+            writer.name("name").value(itemNames[i]);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.flush();
+        return out.toString();
+    }
+}
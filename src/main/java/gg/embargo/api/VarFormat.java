@@ -0,0 +1,47 @@
+package gg.embargo.api;
+
+import lombok.Getter;
+
+/**
+ * Encodings the {@code untrackables} route accepts for varbit and varp submissions.
+ * <p>
+ * Submissions start out as JSON and advertise the binary formats in
+ * {@link #ACCEPT_HEADER}. The server opts in by naming a format in {@link #FORMAT_HEADER}
+ * on its response, and every later submission is sent in that format with the same header.
+ * A 415 response to a binary submission drops back to JSON.
+ */
+@Getter
+public enum VarFormat {
+    JSON("json", false, false),
+    VARINT("varint", true, false),
+    VARINT_GZIP("varint+gzip", true, true);
+
+    public static final String FORMAT_HEADER = "X-Embargo-Var-Format";
+    public static final String ACCEPT_HEADER = "X-Embargo-Accept-Var-Format";
+    public static final String ACCEPT_VALUE = VARINT.headerValue + ", " + VARINT_GZIP.headerValue;
+
+    private final String headerValue;
+    private final boolean binary;
+    private final boolean gzip;
+
+    VarFormat(String headerValue, boolean binary, boolean gzip) {
+        this.headerValue = headerValue;
+        this.binary = binary;
+        this.gzip = gzip;
+    }
+
+    /**
+     * @return the format named by a {@link #FORMAT_HEADER} value, or null if it is unknown
+     */
+    public static VarFormat fromHeader(String value) {
+        if (value == null) {
+            return null;
+        }
+        for (VarFormat format : values()) {
+            if (format.headerValue.equalsIgnoreCase(value.trim())) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,98 @@
+package gg.embargo.api;
+
+import com.google.gson.JsonPrimitive;
+import gg.embargo.sync.SkillState;
+import gg.embargo.sync.VarDeltaBatch;
+import gg.embargo.sync.VarSubmission;
+import net.runelite.api.Skill;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+
+/**
+ * Body for the {@code untrackables} route.
+ * <p>
+ * Varbit and varp ids are JSON object keys, which a {@link com.google.gson.stream.JsonWriter}
+ * could only take as strings. Writing the decimal digits straight into the sink keeps the
+ * cost of a submission free of per-entry allocations however many changes it carries.
+ */
+public class VarSubmissionBody extends RequestBody {
+
+    // Quoted skill name and colon, ready to be followed by a number
+    private static final String[] SKILL_KEYS;
+
+    static {
+        Skill[] skills = Skill.values();
+        SKILL_KEYS = new String[skills.length];
+        for (Skill skill : skills) {
+            SKILL_KEYS[skill.ordinal()] = new JsonPrimitive(skill.getName()) + ":";
+        }
+    }
+
+    private final VarSubmission submission;
+
+    public VarSubmissionBody(VarSubmission submission) {
+        this.submission = submission;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JsonRequestBody.JSON;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.writeUtf8("{\"username\":");
+        writeString(sink, submission.getUsername());
+        sink.writeUtf8(",\"profile\":");
+        writeString(sink, submission.getProfile());
+        sink.writeUtf8(",\"version\":").writeUtf8(Float.toString(submission.getVersion()));
+        sink.writeUtf8(",\"data\":{\"varb\":");
+        writeBatch(sink, submission.getVarbits());
+        sink.writeUtf8(",\"varp\":");
+        writeBatch(sink, submission.getVarps());
+        SkillState skills = submission.getSkills();
+        sink.writeUtf8(",\"level\":{");
+        boolean first = true;
+        for (long remaining = skills.mask(); remaining != 0; remaining &= remaining - 1) {
+            int ordinal = Long.numberOfTrailingZeros(remaining);
+            if (!first) {
+                sink.writeByte(',');
+            }
+            first = false;
+            sink.writeUtf8(SKILL_KEYS[ordinal]).writeDecimalLong(skills.levelAt(ordinal));
+        }
+        sink.writeUtf8("},\"xp\":{");
+        first = true;
+        for (long remaining = skills.mask(); remaining != 0; remaining &= remaining - 1) {
+            int ordinal = Long.numberOfTrailingZeros(remaining);
+            int xp = skills.xpAt(ordinal);
+            if (xp == SkillState.UNKNOWN_XP) {
+                continue;
+            }
+            if (!first) {
+                sink.writeByte(',');
+            }
+            first = false;
+            sink.writeUtf8(SKILL_KEYS[ordinal]).writeDecimalLong(xp);
+        }
+        sink.writeUtf8("}}}");
+    }
+
+    private static void writeBatch(BufferedSink sink, VarDeltaBatch batch) throws IOException {
+        sink.writeByte('{');
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                sink.writeByte(',');
+            }
+            sink.writeByte('"').writeDecimalLong(batch.keyAt(i)).writeUtf8("\":").writeDecimalLong(batch.valueAt(i));
+        }
+        sink.writeByte('}');
+    }
+
+    private static void writeString(BufferedSink sink, String value) throws IOException {
+        sink.writeUtf8(new JsonPrimitive(value).toString());
+    }
+}
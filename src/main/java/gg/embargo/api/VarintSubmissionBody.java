@@ -0,0 +1,45 @@
+package gg.embargo.api;
+
+import gg.embargo.sync.VarSubmission;
+import gg.embargo.sync.VarSubmissionCodec;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import java.io.IOException;
+
+/**
+ * Body for the {@code untrackables} route in the binary format described by
+ * {@link VarSubmissionCodec}, optionally gzipped.
+ */
+public class VarintSubmissionBody extends RequestBody {
+
+    static final MediaType VARINT = MediaType.parse("application/x-embargo-vars");
+
+    private final VarSubmission submission;
+    private final boolean gzip;
+
+    public VarintSubmissionBody(VarSubmission submission, boolean gzip) {
+        this.submission = submission;
+        this.gzip = gzip;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return VARINT;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        if (!gzip) {
+            VarSubmissionCodec.encode(submission, sink);
+            return;
+        }
+
+        BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+        VarSubmissionCodec.encode(submission, gzipSink);
+        gzipSink.close();
+    }
+}
@@ -25,10 +25,12 @@ package gg.embargo.collections;
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import com.google.gson.Gson;
 import com.google.gson.JsonParseException;
+import gg.embargo.DataManager.APIRoutes;
 import gg.embargo.EmbargoConfig;
-import gg.embargo.manifest.Manifest;
+import gg.embargo.api.CollectionLogBody;
+import gg.embargo.api.EmbargoApi;
+import gg.embargo.manifest.CompiledManifest;
 import gg.embargo.manifest.ManifestManager;
 import gg.embargo.ui.EmbargoPanel;
 import gg.embargo.ui.SyncButtonManager;
@@ -50,7 +52,6 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -59,8 +60,6 @@ public class CollectionLogManager {
     private final int VARBITS_ARCHIVE_ID = 14;
     private static final String PLUGIN_USER_AGENT = "Embargo Runelite Plugin";
 
-    private static final String SUBMIT_URL = "https://embargo.gg/api/runelite/uploadcollectionlog";
-    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
     private final Map<PlayerProfile, PlayerData> playerDataMap = new HashMap<>();
     private int cyclesSinceSuccessfulCall = 0;
     private static List<Map<String, Map<String, Object>>> rawClogItems = new ArrayList<>();
@@ -69,7 +68,7 @@ public class CollectionLogManager {
     private SyncButtonManager syncButtonManager;
 
     @Inject
-    private OkHttpClient okHttpClient;
+    private EmbargoApi embargoApi;
 
     @Inject
     private ScheduledExecutorService scheduledExecutorService;
@@ -77,15 +76,9 @@ public class CollectionLogManager {
     @Inject
     private EmbargoPanel embargoPanel;
 
-    @Inject
-    private Gson gson;
-
     @Inject
     private EmbargoConfig config;
 
-    @Inject
-    private Manifest manifest;
-
     @Inject
     private ManifestManager manifestManager;
 
@@ -108,17 +101,7 @@ public class CollectionLogManager {
 
     public void startUp(SyncButtonManager mainSyncButtonManager) {
         eventBus.register(this);
-        manifestManager.getLatestManifest();
         syncButtonManager = mainSyncButtonManager;
-
-        clientThread.invoke(() -> {
-            if (client.getIndexConfig() == null || client.getGameState().ordinal() < GameState.LOGIN_SCREEN.ordinal()) {
-                return false;
-            }
-            manifestManager.getLatestManifest();
-            return true;
-        });
-
     }
 
     public void shutDown() {
@@ -166,6 +149,11 @@ public class CollectionLogManager {
             int itemId = (int) args[1];
             int itemCount = (int) args[2];
 
+            CompiledManifest manifest = manifestManager.getManifest();
+            if (manifest != null && !manifest.isCollectionItem(itemId)) {
+                return;
+            }
+
             String itemName;
             try {
                 ItemComposition ic = itemManager.getItemComposition(itemId);
@@ -240,20 +228,12 @@ public class CollectionLogManager {
             return;
         }
 
-        PlayerDataSubmission submission = new PlayerDataSubmission(
-                profileKey.getUsername(),
-                profileKey.getProfileType().name(),
-                delta);
-
-        Request request = new Request.Builder()
+        Request request = embargoApi.newRequest(APIRoutes.UPLOAD_COLLECTION_LOG)
                 .addHeader("User-Agent", PLUGIN_USER_AGENT)
-                .url(SUBMIT_URL)
-                .post(RequestBody.create(JSON, gson.toJson(submission)))
+                .post(collectionLogBody(profileKey, delta))
                 .build();
 
-        Call call = okHttpClient.newCall(request);
-        call.timeout().timeout(3, TimeUnit.SECONDS);
-        call.enqueue(new Callback() {
+        embargoApi.enqueue(APIRoutes.UPLOAD_COLLECTION_LOG, request, new Callback() {
             @Override
             public void onFailure(Call call, IOException e) {
                 log.debug("Failed to submit: ", e);
@@ -275,6 +255,26 @@ public class CollectionLogManager {
         });
     }
 
+    // Copied out of the items seen so far, which the client thread keeps adding to
+    private static CollectionLogBody collectionLogBody(PlayerProfile profileKey, PlayerData data) {
+        List<Map.Entry<String, Map<String, Object>>> items = new ArrayList<>();
+        for (Map<String, Map<String, Object>> item : new ArrayList<>(data.rawClogItems)) {
+            items.addAll(item.entrySet());
+        }
+
+        String[] names = new String[items.size()];
+        int[] ids = new int[names.length];
+        int[] quantities = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Map.Entry<String, Map<String, Object>> item = items.get(i);
+            names[i] = item.getKey();
+            ids[i] = (Integer) item.getValue().get("id");
+            quantities[i] = (Integer) item.getValue().get("quantity");
+        }
+        return new CollectionLogBody(profileKey.getUsername(), profileKey.getProfileType().name(),
+                names, ids, quantities);
+    }
+
     @Subscribe
     public void onConfigChanged(ConfigChanged event) {
         String CONFIG_GROUP = "embargo";
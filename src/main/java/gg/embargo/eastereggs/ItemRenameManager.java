@@ -3,6 +3,8 @@ package gg.embargo.eastereggs;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import gg.embargo.EmbargoConfig;
+import gg.embargo.manifest.CompiledManifest;
+import gg.embargo.manifest.ManifestChanged;
 import gg.embargo.manifest.ManifestManager;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.*;
@@ -32,8 +34,6 @@ public class ItemRenameManager {
         this.manifestManager = manifestManager;
     }
 
-    private boolean manifestFetchAttempted = false;
-
     private static final Set<MenuAction> ITEM_MENU_ACTIONS = ImmutableSet.of(
             MenuAction.GROUND_ITEM_FIRST_OPTION, MenuAction.GROUND_ITEM_SECOND_OPTION,
             MenuAction.GROUND_ITEM_THIRD_OPTION, MenuAction.GROUND_ITEM_FOURTH_OPTION,
@@ -47,8 +47,8 @@ public class ItemRenameManager {
     // Default item name remappings
     private static final ImmutableMap<String, String> DEFAULT_ITEM_REMAP = ImmutableMap.<String, String>builder().build();
 
-    // Map for custom renamings
-    private final Map<String, String> customItemRemap = new HashMap<>();
+    // Map for custom renamings, replaced whole when the manifest changes
+    private volatile Map<String, String> customItemRemap = DEFAULT_ITEM_REMAP;
 
     public boolean featureEnabled() {
         return config.enableClanEasterEggs() && config.enableItemRenames();
@@ -61,56 +61,57 @@ public class ItemRenameManager {
             return;
         }
 
-        if (manifestManager.getManifest() == null) {
-            manifestManager.getLatestManifest();
-            return;
-        }
-
-        // Check if manifest is empty and fetch if needed
-        if (manifestManager.getManifest().getItemRenames() == null) {
-            manifestManager.getLatestManifest();
-        }
-
-        parseManifest();
-        
         MenuEntry entry = event.getMenuEntry();
         if (ITEM_MENU_ACTIONS.contains(entry.getType())) {
             remapMenuEntryText(entry, customItemRemap);
         }
     }
 
+    @Subscribe
+    public void onManifestChanged(ManifestChanged event) {
+        setupMenuRenames(event.getManifest());
+    }
+
     public void startUp() {
         eventBus.register(this);
 
         if (!featureEnabled()) return;
 
         setupMenuRenames();
-        manifestManager.getLatestManifest(); // Fetch manifest on startup
     }
 
     public void shutDown() {
-        customItemRemap.clear();
+        customItemRemap = DEFAULT_ITEM_REMAP;
         eventBus.unregister(this);
     }
 
     public void setupMenuRenames() {
-        customItemRemap.clear();
-        customItemRemap.putAll(DEFAULT_ITEM_REMAP);
+        // The manifest may have been read before this was registered for changes
+        setupMenuRenames(manifestManager.getManifest());
     }
 
-    public void parseManifest() {
-        if (manifestManager.getManifest().getItemRenames() == null || manifestManager.getManifest().getItemRenames().isEmpty()) {
-            if (!manifestFetchAttempted) {
-                log.debug("manifest.itemRenames is empty, attempting to refetch");
-            }
-            return;
+    private void setupMenuRenames(CompiledManifest manifest) {
+        if (manifest == null || !featureEnabled()) {
+            customItemRemap = DEFAULT_ITEM_REMAP;
+        } else if (manifest.hasRenames()) {
+            parseManifest(manifest);
+        } else {
+            // Read from disk on the executor, they arrive with the next ManifestChanged
+            manifestManager.loadRenames();
         }
+    }
 
-        for (Map.Entry<String, String> entry : manifestManager.getManifest().getItemRenames().entrySet()) {
-            String originalName = entry.getKey();
-            String newName = entry.getValue();
-            customItemRemap.put(originalName, newName);
+    public void parseManifest(CompiledManifest manifest) {
+        // Already frozen by the manifest, only copied when there are defaults to merge in
+        Map<String, String> renames = manifest.getItemRenames();
+        if (DEFAULT_ITEM_REMAP.isEmpty()) {
+            customItemRemap = renames;
+            return;
         }
+
+        Map<String, String> remap = new HashMap<>(DEFAULT_ITEM_REMAP);
+        remap.putAll(renames);
+        customItemRemap = remap;
     }
 
     /**
@@ -3,6 +3,8 @@ package gg.embargo.eastereggs;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import gg.embargo.EmbargoConfig;
+import gg.embargo.manifest.CompiledManifest;
+import gg.embargo.manifest.ManifestChanged;
 import gg.embargo.manifest.ManifestManager;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.MenuAction;
@@ -32,7 +34,6 @@ public class NPCRenameManager {
         this.manifestManager = manifestManager;
     }
 
-    private final HashMap<String, String> npcListHashMap = new HashMap<>();
     private static final Set<MenuAction> NPC_MENU_ACTIONS = ImmutableSet.of(
             MenuAction.NPC_FIRST_OPTION,
             MenuAction.NPC_SECOND_OPTION,
@@ -43,9 +44,8 @@ public class NPCRenameManager {
             MenuAction.EXAMINE_NPC);
 
     private static final ImmutableMap<String, String> DEFAULT_NPC_RENAMES = ImmutableMap.<String, String>builder().build();
-    private final Map<String, String> customNPCRemaps = new HashMap<>();
-
-    private boolean manifestFetchAttempted = false;
+    // Replaced whole when the manifest changes
+    private volatile Map<String, String> customNPCRemaps = DEFAULT_NPC_RENAMES;
 
     public boolean featureEnabled() {
         return config.enableClanEasterEggs() && config.enableNpcRenames();
@@ -58,79 +58,67 @@ public class NPCRenameManager {
             return;
         }
 
-        if (manifestManager.getManifest() == null) {
-            manifestManager.getLatestManifest();
-            return;
-        }
-
-        // Check if manifest is empty and fetch if needed
-        if (manifestManager.getManifest().getItemRenames() == null) {
-            manifestManager.getLatestManifest();
-        }
-
-        parseManifest();
         MenuEntry entry = event.getMenuEntry();
-
-
         if (NPC_MENU_ACTIONS.contains(entry.getType())) {
-            remapMenuEntryText(entry, (HashMap<String, String>) customNPCRemaps);  // Use customNPCRemaps instead of npcListHashMap
+            remapMenuEntryText(entry, customNPCRemaps);
         }
     }
 
+    @Subscribe
+    public void onManifestChanged(ManifestChanged event) {
+        setupMenuRenames(event.getManifest());
+    }
+
     public void startUp() {
         eventBus.register(this);
 
         if (!featureEnabled()) return;
 
         setupMenuRenames();
-        manifestManager.getLatestManifest(); // Fetch manifest on startup
     }
 
     public void shutDown() {
-        customNPCRemaps.clear();
+        customNPCRemaps = DEFAULT_NPC_RENAMES;
         eventBus.unregister(this);
     }
 
     public void setupMenuRenames() {
-        customNPCRemaps.clear();
-        customNPCRemaps.putAll(DEFAULT_NPC_RENAMES);
+        // The manifest may have been read before this was registered for changes
+        setupMenuRenames(manifestManager.getManifest());
     }
 
-    public void parseManifest() {
-        if (manifestManager.getManifest().getNpcRenames() == null || manifestManager.getManifest().getNpcRenames().isEmpty()) {
-            if (!manifestFetchAttempted) {
-                manifestFetchAttempted = true;
-                manifestManager.getLatestManifest();
-                log.debug("manifest.npcRenames is empty, attempting to refetch");
-            }
-            return;
+    private void setupMenuRenames(CompiledManifest manifest) {
+        if (manifest == null || !featureEnabled()) {
+            customNPCRemaps = DEFAULT_NPC_RENAMES;
+        } else if (manifest.hasRenames()) {
+            parseManifest(manifest);
+        } else {
+            // Read from disk on the executor, they arrive with the next ManifestChanged
+            manifestManager.loadRenames();
         }
+    }
 
-        // Clear both maps
-        customNPCRemaps.clear();
-        npcListHashMap.clear();
-        
-        // Add default renames
-        customNPCRemaps.putAll(DEFAULT_NPC_RENAMES);
-
-        // Add manifest renames to both maps
-        for (Map.Entry<String, String> entry : manifestManager.getManifest().getNpcRenames().entrySet()) {
-            String originalName = entry.getKey();
-            String newName = entry.getValue();
-            customNPCRemaps.put(originalName, newName);
-            npcListHashMap.put(originalName, newName);
-            //log.debug("NPCRename: Setting {} to {}", originalName, newName);
+    public void parseManifest(CompiledManifest manifest) {
+        // Already frozen by the manifest, only copied when there are defaults to merge in
+        Map<String, String> renames = manifest.getNpcRenames();
+        if (DEFAULT_NPC_RENAMES.isEmpty()) {
+            customNPCRemaps = renames;
+            return;
         }
+
+        Map<String, String> remaps = new HashMap<>(DEFAULT_NPC_RENAMES);
+        remaps.putAll(renames);
+        customNPCRemaps = remaps;
     }
 
-    private void remapMenuEntryText(MenuEntry menuEntry, HashMap<String, String> map) {
+    private void remapMenuEntryText(MenuEntry menuEntry, Map<String, String> map) {
         String target = menuEntry.getTarget();
         String cleanTarget;
         
         NPC npc = menuEntry.getNpc();
         cleanTarget = npc != null ? Text.removeTags(npc.getName()) : Text.removeTags(target);
         
-        String replacement = customNPCRemaps.get(cleanTarget);
+        String replacement = map.get(cleanTarget);
         if (replacement != null) {
             menuEntry.setTarget(target.replace(cleanTarget, replacement));
         }
@@ -0,0 +1,162 @@
+package gg.embargo.manifest;
+
+import com.google.common.collect.ImmutableMap;
+import gg.embargo.sync.TrackedVars;
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * A {@link Manifest} compiled once per version into the structures its consumers look things
+ * up in: tracked var sets, sorted id arrays, frozen rename tables and precompiled completion matchers.
+ * <p>
+ * Immutable, so {@link ManifestManager} publishes it through a single reference and any
+ * thread can read it without copying or locking. The rename tables of a manifest read without
+ * them are loaded the first time they are asked for, which {@link ManifestManager#loadRenames}
+ * does off the client thread.
+ */
+public final class CompiledManifest {
+
+    @Getter
+    private final float version;
+
+    @Getter
+    private final TrackedVars trackedVars;
+
+    @Getter
+    private final CompletionMatcher raidCompletions;
+
+    @Getter
+    private final CompletionMatcher minigameCompletions;
+
+    // Sorted, for binary search
+    private final int[] untrackableItems;
+    private final int[] collections;
+
+    // Null until a deferred loader has run, guarded by this while it does
+    private volatile Renames renames;
+    private final Supplier<Manifest> renamesLoader;
+
+    // What it was compiled from, kept to apply patches to
+    private final Manifest source;
+
+    private CompiledManifest(Manifest source, Supplier<Manifest> renamesLoader) {
+        this.source = source;
+        version = source.getVersion();
+        trackedVars = TrackedVars.of(version, orEmpty(source.getVarbits()), orEmpty(source.getVarps()));
+        this.renamesLoader = renamesLoader;
+        renames = renamesLoader == null ? Renames.of(source) : null;
+        raidCompletions = CompletionMatcher.compile(source.getRaidCompletionMessages());
+        minigameCompletions = CompletionMatcher.compile(source.getMinigameCompletionMessages());
+        untrackableItems = sortedIds(source.getUntrackableItems());
+        collections = sortedIds(source.getCollections());
+    }
+
+    public static CompiledManifest compile(Manifest manifest) {
+        return new CompiledManifest(manifest, null);
+    }
+
+    /**
+     * Compiles a manifest read without its rename tables, which the loader reads when they
+     * are first asked for. The loader returns null when they cannot be read any more.
+     */
+    static CompiledManifest compile(Manifest manifest, Supplier<Manifest> renamesLoader) {
+        return new CompiledManifest(manifest, renamesLoader);
+    }
+
+    public ImmutableMap<String, String> getItemRenames() {
+        return renames().items;
+    }
+
+    public ImmutableMap<String, String> getNpcRenames() {
+        return renames().npcs;
+    }
+
+    /**
+     * @return whether the rename tables can be asked for without reading them from disk on the
+     *         calling thread
+     */
+    public boolean hasRenames() {
+        return renames != null;
+    }
+
+    public boolean isUntrackableItem(int itemId) {
+        return Arrays.binarySearch(untrackableItems, itemId) >= 0;
+    }
+
+    public boolean isCollectionItem(int itemId) {
+        return Arrays.binarySearch(collections, itemId) >= 0;
+    }
+
+    /**
+     * @return the manifest this was compiled from, without rename tables if they were deferred
+     */
+    Manifest getSource() {
+        return source;
+    }
+
+    boolean hasDeferredRenames() {
+        return renamesLoader != null;
+    }
+
+    private Renames renames() {
+        Renames loaded = renames;
+        if (loaded != null) {
+            return loaded;
+        }
+        synchronized (this) {
+            if (renames == null) {
+                renames = Renames.of(renamesLoader.get());
+            }
+            return renames;
+        }
+    }
+
+    private static int[] orEmpty(int[] ids) {
+        return ids == null ? new int[0] : ids;
+    }
+
+    private static int[] sortedIds(List<Integer> ids) {
+        if (ids == null) {
+            return new int[0];
+        }
+        return ids.stream().filter(Objects::nonNull).mapToInt(Integer::intValue).sorted().distinct().toArray();
+    }
+
+    private static ImmutableMap<String, String> freeze(Map<String, String> map) {
+        if (map == null) {
+            return ImmutableMap.of();
+        }
+        ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        map.forEach((key, value) -> {
+            // ImmutableMap takes no nulls, and a rename to nothing is no rename
+            if (key != null && value != null) {
+                builder.put(key, value);
+            }
+        });
+        return builder.build();
+    }
+
+    private static final class Renames {
+        private static final Renames NONE = new Renames(ImmutableMap.of(), ImmutableMap.of());
+
+        private final ImmutableMap<String, String> items;
+        private final ImmutableMap<String, String> npcs;
+
+        private Renames(ImmutableMap<String, String> items, ImmutableMap<String, String> npcs) {
+            this.items = items;
+            this.npcs = npcs;
+        }
+
+        static Renames of(Manifest manifest) {
+            if (manifest == null) {
+                return NONE;
+            }
+            return new Renames(freeze(manifest.getItemRenames()), freeze(manifest.getNpcRenames()));
+        }
+    }
+}
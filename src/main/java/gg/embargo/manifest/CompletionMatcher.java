@@ -0,0 +1,65 @@
+package gg.embargo.manifest;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds which activity a chat message reports the completion of, from a map of activity name
+ * to the text its completion message contains.
+ * <p>
+ * Every completion text is folded into one literal alternation compiled once, so a chat
+ * message is scanned a single time however many activities the manifest lists.
+ */
+public final class CompletionMatcher {
+
+    public static final CompletionMatcher NONE = new CompletionMatcher(null, ImmutableMap.of());
+
+    private final Pattern pattern;
+    private final ImmutableMap<String, String> nameByMessage;
+
+    private CompletionMatcher(Pattern pattern, ImmutableMap<String, String> nameByMessage) {
+        this.pattern = pattern;
+        this.nameByMessage = nameByMessage;
+    }
+
+    public static CompletionMatcher compile(Map<String, String> messagesByName) {
+        if (messagesByName == null) {
+            return NONE;
+        }
+
+        Map<String, String> nameByMessage = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : messagesByName.entrySet()) {
+            String message = entry.getValue();
+            // An empty text would be contained in every chat message
+            if (entry.getKey() != null && message != null && !message.isEmpty()) {
+                nameByMessage.putIfAbsent(message, entry.getKey());
+            }
+        }
+        if (nameByMessage.isEmpty()) {
+            return NONE;
+        }
+
+        StringJoiner alternation = new StringJoiner("|");
+        for (String message : nameByMessage.keySet()) {
+            alternation.add(Pattern.quote(message));
+        }
+        return new CompletionMatcher(Pattern.compile(alternation.toString()), ImmutableMap.copyOf(nameByMessage));
+    }
+
+    /**
+     * @return the name of the activity whose completion text the chat message contains, or
+     *         null if there is none
+     */
+    public String match(String chatMessage) {
+        if (pattern == null) {
+            return null;
+        }
+        Matcher matcher = pattern.matcher(chatMessage);
+        return matcher.find() ? nameByMessage.get(matcher.group()) : null;
+    }
+}
@@ -36,22 +36,22 @@ import java.util.List;
 @Data
 public class Manifest
 {
-    // misc
-    final float version = -1;
+    // misc, not final so the version Gson reads is not folded into a constant -1
+    float version = -1;
 
     //Varp/varb trackable items
-    final int[] varbits = new int[0];
-    final int[] varps = new int[0];
+    int[] varbits = new int[0];
+    int[] varps = new int[0];
 
     //Untrackable items
-    public final List<Integer> untrackableItems = new ArrayList<>();
+    public List<Integer> untrackableItems = new ArrayList<>();
 
     //Raid/Minigame completion messages
     public Map<String, String> raidCompletionMessages = new HashMap<>();
     public Map<String, String> minigameCompletionMessages = new HashMap<>();
 
     //Collection log
-    public final ArrayList<Integer> collections = new ArrayList<>();
+    public ArrayList<Integer> collections = new ArrayList<>();
 
     //Easter egg
     public Map<String, String> itemRenames = new HashMap<>();
@@ -0,0 +1,12 @@
+package gg.embargo.manifest;
+
+import lombok.Value;
+
+/**
+ * Posted on the client thread whenever {@link ManifestManager} takes a manifest with a new
+ * version, including the one read from disk at start up.
+ */
+@Value
+public class ManifestChanged {
+    CompiledManifest manifest;
+}
@@ -1,36 +1,102 @@
 package gg.embargo.manifest;
 
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableSet;
 import com.google.gson.*;
-import lombok.Getter;
+import gg.embargo.DataManager.APIRoutes;
+import gg.embargo.EmbargoConfig;
+import gg.embargo.api.EmbargoApi;
 import lombok.NonNull;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import net.runelite.client.RuneLite;
+import net.runelite.client.callback.ClientThread;
+import net.runelite.client.eventbus.EventBus;
 import okhttp3.*;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
+/**
+ * The one place the manifest is fetched, parsed and versioned.
+ * <p>
+ * Every manifest taken is compiled once into a {@link CompiledManifest} and published
+ * through one atomic reference. Consumers read {@link #getManifest()}, which never fetches
+ * anything, or subscribe to {@link ManifestChanged}. {@link #refresh()} revalidates the manifest
+ * against the API at most once every {@link #CHECK_INTERVAL}.
+ * <p>
+ * The last manifest received is kept on disk with its ETag and Last-Modified, and read back
+ * by {@link #loadFromDisk()} when the plugin starts, so features have a manifest from the
+ * first tick. Polls send those validators, so a manifest that did not change costs a 304
+ * without a body.
+ * <p>
+ * Polls also send the version held, and the API may answer with a {@link ManifestPatch} from
+ * it under status 226 (IM Used). A patch that does not apply to the version held, or cannot
+ * be read, is dropped and the whole manifest fetched again right away.
+ * <p>
+ * Manifests are parsed straight from the response as it streams in, the body being copied to
+ * disk on the way. While the clan easter eggs are off the rename tables are skipped. Once they
+ * are wanted, {@link #loadRenames()} reads them back from the copy on disk on the executor.
+ */
 @Slf4j
 @Singleton
 public class ManifestManager {
 
+    private static final File MANIFEST_DIR = new File(RuneLite.RUNELITE_DIR, "embargo");
+    // The ETag line, the Last-Modified line, then the manifest JSON as received
+    private static final File MANIFEST_FILE = new File(MANIFEST_DIR, "manifest.cache");
+
+    private static final Set<String> RENAME_FIELDS = ImmutableSet.of("itemRenames", "npcRenames");
+
     @Inject
     private Gson gson;
 
     @Inject
-    private OkHttpClient okHttpClient;
+    private EmbargoApi embargoApi;
+
+    @Inject
+    private EventBus eventBus;
+
+    @Inject
+    private ClientThread clientThread;
+
+    @Inject
+    private EmbargoConfig config;
+
+    @Inject
+    private ScheduledExecutorService executor;
+
+    // Skip the JSON of the fields they leave out instead of building it
+    private final Supplier<Gson> withoutRenames = Suppliers.memoize(() -> gson.newBuilder()
+            .addDeserializationExclusionStrategy(excluding(false))
+            .create());
+    private final Supplier<Gson> renamesOnly = Suppliers.memoize(() -> gson.newBuilder()
+            .addDeserializationExclusionStrategy(excluding(true))
+            .create());
 
-    @Getter
-    @Setter
-    private Manifest manifest;
+    // Null until a manifest was read from disk or received
+    private final AtomicReference<CompiledManifest> current = new AtomicReference<>();
 
-    @Getter
-    @Setter
-    private float lastCheckedManifestVersion = -1;
+    // Validators of the manifest held, empty when the server sent none
+    private volatile String etag = "";
+    private volatile String lastModified = "";
 
     // Add timestamp for last check
     private long lastCheckTimestamp = 0;
@@ -38,33 +104,117 @@ public class ManifestManager {
     // Add a flag to track if a request is in progress
     private final AtomicBoolean requestInProgress = new AtomicBoolean(false);
 
+    private final AtomicBoolean renamesLoading = new AtomicBoolean();
+
     // 3 minutes in milliseconds
     private static final long CHECK_INTERVAL = 3 * 60 * 1000;
 
-    //private static final String MOCK_API_URI = "https://a278d141-927f-433b-8e4b-6d994067900d.mock.pstmn.io/api/";
-    private static final String API_URI = "https://embargo.gg/api/";
-    private static final String MANIFEST_ENDPOINT = API_URI + "runelite/manifest";
+    private static final int PATCH_STATUS = 226;
+
+    // Set when a patch could not be applied, so the next request asks for the whole manifest
+    private volatile boolean fullFetchNeeded;
+
+    /**
+     * Reads the manifest stored by the last session, if there is one. Blocking, meant for
+     * plugin start up once every subscriber is registered.
+     */
+    public void loadFromDisk() {
+        // Subscribers start over with the plugin, so whatever is read is published to them
+        // anew and the next refresh is not held back
+        current.set(null);
+        lastCheckTimestamp = 0;
+        if (!MANIFEST_FILE.exists()) {
+            return;
+        }
+
+        boolean renames = config.enableClanEasterEggs();
+        try (BufferedSource source = Okio.buffer(Okio.source(MANIFEST_FILE))) {
+            String storedEtag = source.readUtf8LineStrict();
+            String storedLastModified = source.readUtf8LineStrict();
+            Manifest stored = parser(renames).fromJson(reader(source), Manifest.class);
+            if (stored == null) {
+                return;
+            }
+            etag = storedEtag;
+            lastModified = storedLastModified;
+            publish(stored, renames);
+            log.debug("Loaded manifest version {} from disk", stored.getVersion());
+        } catch (IOException | JsonParseException e) {
+            log.warn("Failed to read the stored manifest, waiting for the API", e);
+        }
+    }
+
+    /**
+     * @return the manifest held, or null if none was read from disk or received yet
+     */
+    public CompiledManifest getManifest() {
+        return current.get();
+    }
+
+    /**
+     * Reads the rename tables of a manifest held without them on the executor, then publishes
+     * the manifest again through {@link ManifestChanged}. Does nothing if they are read already.
+     */
+    public void loadRenames() {
+        CompiledManifest manifest = current.get();
+        if (manifest == null || manifest.hasRenames() || !renamesLoading.compareAndSet(false, true)) {
+            return;
+        }
 
-    public Manifest getLatestManifest() {
+        executor.execute(() -> {
+            try {
+                manifest.getItemRenames();
+            } finally {
+                renamesLoading.set(false);
+            }
+            if (current.get() == manifest) {
+                clientThread.invoke(() -> eventBus.post(new ManifestChanged(manifest)));
+            } else if (config.enableClanEasterEggs()) {
+                // Replaced while reading, and asking for the newer one found this busy
+                loadRenames();
+            }
+        });
+    }
+
+    public float getLastCheckedManifestVersion() {
+        CompiledManifest manifest = current.get();
+        return manifest == null ? -1 : manifest.getVersion();
+    }
+
+    /**
+     * Asks the API for a newer manifest, unless it was asked less than {@link #CHECK_INTERVAL}
+     * ago or a request is still in progress. Subscribers hear about a new version through
+     * {@link ManifestChanged}.
+     */
+    public void refresh() {
         long currentTime = System.currentTimeMillis();
 
         // Only proceed if 3 minutes have passed since the last check AND no request is
         // in progress
         if (currentTime - lastCheckTimestamp < CHECK_INTERVAL || !requestInProgress.compareAndSet(false, true)) {
-            log.debug(
-                    "Skipping manifest check - last check was less than 3 minutes ago or request already in progress");
-            return manifest; // Return the current manifest instead of null
+            return;
         }
 
         try {
-            Request r = new Request.Builder()
-                    .url(MANIFEST_ENDPOINT)
-                    .header("Cache-Control", "no-cache, no-store")
-                    .header("Pragma", "no-cache")
-                    .cacheControl(new CacheControl.Builder().noCache().noStore().build())
-                    .build();
-
-            okHttpClient.newCall(r).enqueue(new Callback() {
+            // The copy on disk is the cache, so always revalidate with the API itself
+            Request.Builder request = embargoApi.newRequest(APIRoutes.MANIFEST)
+                    .cacheControl(CacheControl.FORCE_NETWORK);
+            CompiledManifest held = current.get();
+            boolean patchable = held != null && !fullFetchNeeded && held.getVersion() != -1;
+            if (patchable) {
+                request.header(EmbargoApi.MANIFEST_BASE_HEADER, Float.toString(held.getVersion()));
+            }
+            if (held != null) {
+                if (!etag.isEmpty()) {
+                    request.header("If-None-Match", etag);
+                }
+                if (!lastModified.isEmpty()) {
+                    request.header("If-Modified-Since", lastModified);
+                }
+            }
+            Request r = request.build();
+
+            embargoApi.enqueue(APIRoutes.MANIFEST, r, new Callback() {
                 @Override
                 public void onFailure(@NonNull Call call, @NonNull IOException e) {
                     log.error("Error retrieving manifest", e);
@@ -73,27 +223,40 @@ public class ManifestManager {
 
                 @Override
                 public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    boolean refetch = false;
                     try (response; response) {
-                        if (response.isSuccessful()) {
+                        if (response.code() == 304) {
+                            log.debug("Manifest not modified");
+                            fullFetchNeeded = false;
+                            lastCheckTimestamp = currentTime;
+                        } else if (response.code() == PATCH_STATUS) {
+                            if (!patchable) {
+                                log.error("Manifest request answered with a patch that was not asked for");
+                            } else if (applyPatch(held, response)) {
+                                lastCheckTimestamp = currentTime;
+                            } else {
+                                fullFetchNeeded = true;
+                                refetch = true;
+                            }
+                        } else if (response.isSuccessful()) {
                             try {
                                 if (response.body() == null) {
                                     log.error("Manifest request succeeded but returned empty body");
                                     return;
                                 }
 
-                                setManifest(gson.fromJson(
-                                        new StringReader(new String(response.body().bytes(), StandardCharsets.UTF_8)),
-                                        Manifest.class));
-                                log.debug("Set manifest");
+                                boolean renames = config.enableClanEasterEggs();
+                                Manifest received = receive(response, renames);
+                                if (received == null) {
+                                    log.error("Manifest request succeeded but returned empty body");
+                                    return;
+                                }
+                                fullFetchNeeded = false;
+                                publish(received, renames);
 
                                 // Update the timestamp
                                 lastCheckTimestamp = currentTime;
-
-                                if (lastCheckedManifestVersion != manifest.getVersion()) {
-                                    log.debug("Setting manifest version to {}", manifest.getVersion());
-                                    lastCheckedManifestVersion = manifest.getVersion();
-                                }
-                            } catch (JsonSyntaxException e) {
+                            } catch (JsonParseException e) {
                                 log.error(e.getLocalizedMessage());
                             } catch (IOException e) {
                                 log.error("Error reading response body", e);
@@ -109,14 +272,228 @@ public class ManifestManager {
                     } finally {
                         requestInProgress.set(false); // Reset the flag
                     }
+                    if (refetch) {
+                        refresh();
+                    }
                 }
             });
         } catch (IllegalArgumentException e) {
             log.error("Bad URL given: {}", e.getLocalizedMessage());
             requestInProgress.set(false); // Reset the flag
         }
+    }
+
+    /**
+     * Applies a patch response to the manifest it was requested for, storing and publishing
+     * the result.
+     *
+     * @return false if the patch cannot be read or was made for another version
+     */
+    private boolean applyPatch(CompiledManifest held, Response response) {
+        ManifestPatch patch;
+        try {
+            patch = gson.fromJson(response.body().charStream(), ManifestPatch.class);
+        } catch (JsonParseException e) {
+            log.debug("Failed to read manifest patch", e);
+            return false;
+        }
+
+        Manifest base = null;
+        if (held != null) {
+            // The result is stored whole, so rename tables that were skipped are read back first
+            base = held.hasDeferredRenames() ? readStored(gson, held.getVersion()) : held.getSource();
+        }
+        Manifest patched = base == null || patch == null ? null : patch.applyTo(base);
+        if (patched == null || current.get() != held) {
+            log.debug("Manifest patch does not apply to version {}", held == null ? null : held.getVersion());
+            return false;
+        }
+
+        log.debug("Patched manifest from version {} to {}", held.getVersion(), patched.getVersion());
+        etag = headerOrEmpty(response, "ETag");
+        lastModified = headerOrEmpty(response, "Last-Modified");
+        store(gson.toJson(patched).getBytes(StandardCharsets.UTF_8));
+        // Rename tables that were skipped stay deferred, they are read back from the copy stored
+        publish(patched, !held.hasDeferredRenames());
+        return true;
+    }
+
+    /**
+     * Parses the manifest from the response body as it is read, copying the body to the file
+     * on disk along the way.
+     *
+     * @return the manifest, or null if the body held none
+     */
+    private Manifest receive(Response response, boolean renames) throws IOException {
+        String receivedEtag = headerOrEmpty(response, "ETag");
+        String receivedLastModified = headerOrEmpty(response, "Last-Modified");
+        File tmp = new File(MANIFEST_DIR, MANIFEST_FILE.getName() + ".tmp");
+        MANIFEST_DIR.mkdirs();
+        CopyingSource copying = new CopyingSource(response.body().source(), tmp, receivedEtag,
+                receivedLastModified);
+
+        Manifest received;
+        try {
+            BufferedSource body = Okio.buffer(copying);
+            received = parser(renames).fromJson(reader(body), Manifest.class);
+            // Whatever follows the JSON still belongs in the copy
+            body.readAll(Okio.blackhole());
+        } catch (IOException | JsonParseException e) {
+            copying.finish();
+            tmp.delete();
+            throw e;
+        }
+
+        if (!copying.finish()) {
+            log.warn("Failed to store the manifest", copying.failure);
+            tmp.delete();
+        } else if (received == null) {
+            tmp.delete();
+        } else {
+            try {
+                Files.move(tmp.toPath(), MANIFEST_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.warn("Failed to store the manifest", e);
+            }
+        }
+
+        if (received != null) {
+            etag = receivedEtag;
+            lastModified = receivedLastModified;
+        }
+        return received;
+    }
+
+    /**
+     * @return the manifest on disk, if it is still the given version
+     */
+    private Manifest readStored(Gson parser, float version) {
+        try (BufferedSource source = Okio.buffer(Okio.source(MANIFEST_FILE))) {
+            source.readUtf8LineStrict();
+            source.readUtf8LineStrict();
+            Manifest stored = parser.fromJson(reader(source), Manifest.class);
+            if (stored != null && stored.getVersion() == version) {
+                return stored;
+            }
+            log.debug("Stored manifest is no longer version {}", version);
+        } catch (IOException | JsonParseException e) {
+            log.warn("Failed to read the stored manifest", e);
+        }
+        return null;
+    }
+
+    // A manifest without a version is always treated as a new one
+    private void publish(Manifest received, boolean renames) {
+        float version = received.getVersion();
+        CompiledManifest compiled = renames ? CompiledManifest.compile(received)
+                : CompiledManifest.compile(received, () -> readStored(renamesOnly.get(), version));
+        CompiledManifest previous = current.getAndSet(compiled);
+        if (previous == null || compiled.getVersion() == -1 || previous.getVersion() != compiled.getVersion()) {
+            log.debug("Manifest version {}", compiled.getVersion());
+            clientThread.invoke(() -> eventBus.post(new ManifestChanged(compiled)));
+        }
+    }
+
+    private void store(byte[] body) {
+        File tmp = new File(MANIFEST_DIR, MANIFEST_FILE.getName() + ".tmp");
+        MANIFEST_DIR.mkdirs();
+        try {
+            try (BufferedSink sink = Okio.buffer(Okio.sink(tmp))) {
+                sink.writeUtf8(etag).writeByte('\n');
+                sink.writeUtf8(lastModified).writeByte('\n');
+                sink.write(body);
+            }
+            Files.move(tmp.toPath(), MANIFEST_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to store the manifest", e);
+        }
+    }
+
+    private Gson parser(boolean renames) {
+        return renames ? gson : withoutRenames.get();
+    }
+
+    private static Reader reader(BufferedSource source) {
+        return new InputStreamReader(source.inputStream(), StandardCharsets.UTF_8);
+    }
+
+    // Leaves out the manifest's rename fields, or all of its other fields but the version
+    private static ExclusionStrategy excluding(boolean allButRenames) {
+        return new ExclusionStrategy() {
+            @Override
+            public boolean shouldSkipField(FieldAttributes f) {
+                if (f.getDeclaringClass() != Manifest.class || f.getName().equals("version")) {
+                    return false;
+                }
+                return RENAME_FIELDS.contains(f.getName()) != allButRenames;
+            }
+
+            @Override
+            public boolean shouldSkipClass(Class<?> clazz) {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Copies every byte read from the response into a file, after the validator lines. A
+     * failure to write is remembered instead of failing the read, so the manifest is still
+     * parsed.
+     */
+    private static final class CopyingSource extends ForwardingSource {
+        private BufferedSink copy;
+        private IOException failure;
+
+        CopyingSource(Source source, File file, String etag, String lastModified) {
+            super(source);
+            try {
+                copy = Okio.buffer(Okio.sink(file));
+                copy.writeUtf8(etag).writeByte('\n');
+                copy.writeUtf8(lastModified).writeByte('\n');
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read > 0 && failure == null) {
+                try {
+                    sink.copyTo(copy.buffer(), sink.size() - read, read);
+                    copy.emitCompleteSegments();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            return read;
+        }
+
+        /**
+         * Closes the file.
+         *
+         * @return true if everything read made it into the file
+         */
+        boolean finish() {
+            if (copy != null) {
+                try {
+                    copy.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                copy = null;
+            }
+            return failure == null;
+        }
+    }
 
-        log.debug("Returning set manifest (not null)");
-        return manifest; // Return current manifest instead of null
+    private static String headerOrEmpty(Response response, String name) {
+        String value = response.header(name);
+        // Stored one per line, so a value spanning lines is not worth keeping
+        return value == null || value.indexOf('\n') >= 0 ? "" : value;
     }
 }
\ No newline at end of file
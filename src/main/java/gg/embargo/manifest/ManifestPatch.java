@@ -0,0 +1,105 @@
+package gg.embargo.manifest;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The difference between two manifest versions, as sent by the API instead of the whole
+ * manifest when it knows the version the client holds.
+ * <p>
+ * Id lists carry the ids added and removed, maps the entries put and the keys removed. A
+ * section that did not change is left out.
+ */
+@Data
+public class ManifestPatch {
+    @Data
+    public static class IdDelta {
+        int[] added = new int[0];
+        int[] removed = new int[0];
+    }
+
+    @Data
+    public static class MapDelta {
+        Map<String, String> put = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+    }
+
+    // The version the patch applies to, and the version it produces
+    float from = -1;
+    float version = -1;
+
+    IdDelta varbits;
+    IdDelta varps;
+    IdDelta untrackableItems;
+    IdDelta collections;
+
+    MapDelta raidCompletionMessages;
+    MapDelta minigameCompletionMessages;
+    MapDelta itemRenames;
+    MapDelta npcRenames;
+
+    /**
+     * @return a new manifest holding the patch applied to the base, or null if the patch was
+     *         made for another version than the base has
+     */
+    public Manifest applyTo(Manifest base) {
+        if (from == -1 || from != base.getVersion()) {
+            return null;
+        }
+
+        Manifest patched = new Manifest();
+        patched.setVersion(version);
+        patched.setVarbits(apply(base.getVarbits(), varbits));
+        patched.setVarps(apply(base.getVarps(), varps));
+        patched.setUntrackableItems(new ArrayList<>(apply(base.getUntrackableItems(), untrackableItems)));
+        patched.setCollections(new ArrayList<>(apply(base.getCollections(), collections)));
+        patched.setRaidCompletionMessages(apply(base.getRaidCompletionMessages(), raidCompletionMessages));
+        patched.setMinigameCompletionMessages(apply(base.getMinigameCompletionMessages(), minigameCompletionMessages));
+        patched.setItemRenames(apply(base.getItemRenames(), itemRenames));
+        patched.setNpcRenames(apply(base.getNpcRenames(), npcRenames));
+        return patched;
+    }
+
+    private static int[] apply(int[] ids, IdDelta delta) {
+        if (delta == null) {
+            return ids;
+        }
+
+        Set<Integer> result = new LinkedHashSet<>();
+        if (ids != null) {
+            for (int id : ids) {
+                result.add(id);
+            }
+        }
+        return apply(result, delta).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static Set<Integer> apply(List<Integer> ids, IdDelta delta) {
+        Set<Integer> result = ids == null ? new LinkedHashSet<>() : new LinkedHashSet<>(ids);
+        return delta == null ? result : apply(result, delta);
+    }
+
+    private static Set<Integer> apply(Set<Integer> ids, IdDelta delta) {
+        for (int id : delta.removed) {
+            ids.remove(id);
+        }
+        Arrays.stream(delta.added).forEach(ids::add);
+        return ids;
+    }
+
+    private static Map<String, String> apply(Map<String, String> map, MapDelta delta) {
+        Map<String, String> result = map == null ? new HashMap<>() : new HashMap<>(map);
+        if (delta != null) {
+            delta.removed.forEach(result::remove);
+            result.putAll(delta.put);
+        }
+        return result;
+    }
+}
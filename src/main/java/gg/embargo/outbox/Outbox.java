@@ -0,0 +1,461 @@
+package gg.embargo.outbox;
+
+import gg.embargo.sync.IntDeltaMap;
+import gg.embargo.sync.SkillState;
+import gg.embargo.sync.VarDeltaBatch;
+import gg.embargo.sync.VarSubmission;
+import gg.embargo.sync.VarSubmissionCodec;
+import lombok.extern.slf4j.Slf4j;
+import net.runelite.client.RuneLite;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+import javax.inject.Singleton;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only file of submissions that could not be delivered, replayed the next time the
+ * plugin starts.
+ * <p>
+ * Varbit, varp and level records for the same account and profile are merged whenever the
+ * file is compacted, newer values replacing older ones, so an account that stays offline only
+ * ever costs one record. Every other route is kept as its raw request body. The file is capped
+ * at {@link #MAX_BYTES}, past that the oldest one-off requests are dropped first.
+ * <p>
+ * Replay merges what is on disk and hands over one record every {@link #REPLAY_INTERVAL_MS}.
+ * A record stays in the file until it has been handed over, so a crash mid-replay replays it
+ * again rather than losing it. A replayed record that fails again is appended again by the
+ * caller, exactly like a live failure.
+ * <p>
+ * Var records appended during a session get an id, so a caller that merged them back into
+ * memory can drop exactly those once it delivered them. Records it never merged back, or
+ * carried over from an earlier session, stay until they are replayed.
+ */
+@Slf4j
+@Singleton
+public class Outbox {
+
+    /**
+     * Returned instead of an id when a record could not be appended.
+     */
+    public static final long NO_RECORD = 0;
+
+    public interface Replayer {
+        void replayVars(VarSubmission submission);
+
+        void replayRequest(String route, RequestBody body);
+    }
+
+    static final long MAX_BYTES = 2 * 1024 * 1024;
+    private static final long REPLAY_DELAY_MS = 5_000;
+    private static final long REPLAY_INTERVAL_MS = 2_000;
+
+    private final File outboxDir;
+    private final File outboxFile;
+
+    private static final byte KIND_VARS = 1;
+    private static final byte KIND_REQUEST = 2;
+
+    // Kind byte and payload length
+    private static final int RECORD_HEADER_BYTES = 5;
+
+    private static final class Record {
+        final byte kind;
+        final byte[] payload;
+        // Only set for var records
+        final VarSubmission vars;
+        // Ids of the appends this record holds, not yet discarded. Empty for records read
+        // from disk, which only replay removes.
+        final Set<Long> appends;
+
+        Record(byte kind, byte[] payload, VarSubmission vars, Set<Long> appends) {
+            this.kind = kind;
+            this.payload = payload;
+            this.vars = vars;
+            this.appends = appends;
+        }
+
+        long size() {
+            return RECORD_HEADER_BYTES + payload.length;
+        }
+    }
+
+    // Mirror of the file, in file order. Loaded on first use, guarded by this
+    private List<Record> records;
+    private long bytes;
+    private long lastAppendId;
+
+    private ScheduledFuture<?> replayTask;
+    // Records on disk when replay started, each still in records until it is handed over
+    private Queue<Record> replayQueue;
+
+    public Outbox() {
+        this(new File(RuneLite.RUNELITE_DIR, "embargo"));
+    }
+
+    Outbox(File dir) {
+        outboxDir = dir;
+        outboxFile = new File(dir, "outbox.bin");
+    }
+
+    /**
+     * @return the id of the new record, or {@link #NO_RECORD} if it could not be appended
+     */
+    public long appendVars(VarSubmission submission) {
+        return replaceVars(new long[0], submission);
+    }
+
+    /**
+     * Appends a submission that holds every change of the given records, then discards
+     * those records.
+     *
+     * @return the id of the new record, or {@link #NO_RECORD} if it could not be appended, in
+     *         which case nothing is discarded
+     */
+    public synchronized long replaceVars(long[] superseded, VarSubmission submission) {
+        Buffer payload = new Buffer();
+        try {
+            VarSubmissionCodec.encode(submission, payload);
+        } catch (IOException e) {
+            log.warn("Failed to encode var submission for the outbox", e);
+            return NO_RECORD;
+        }
+
+        long id = ++lastAppendId;
+        Set<Long> appends = new HashSet<>();
+        appends.add(id);
+        if (!append(new Record(KIND_VARS, payload.readByteArray(), submission, appends))) {
+            return NO_RECORD;
+        }
+        discardVars(superseded);
+        return id;
+    }
+
+    public void appendRequest(String route, RequestBody body) {
+        Buffer payload = new Buffer();
+        try {
+            MediaType contentType = body.contentType();
+            writeString(payload, route);
+            writeString(payload, contentType == null ? "" : contentType.toString());
+            body.writeTo(payload);
+        } catch (IOException e) {
+            log.warn("Failed to copy {} request into the outbox", route, e);
+            return;
+        }
+        append(new Record(KIND_REQUEST, payload.readByteArray(), null, new HashSet<>()));
+    }
+
+    /**
+     * Drops the var records appended under the given ids, once everything they held was
+     * delivered. A record merged from several appends goes once all of them are discarded.
+     */
+    public synchronized void discardVars(long[] ids) {
+        if (ids.length == 0) {
+            return;
+        }
+        load();
+        boolean removed = false;
+        for (Iterator<Record> it = records.iterator(); it.hasNext(); ) {
+            Record record = it.next();
+            if (record.appends.isEmpty()) {
+                continue;
+            }
+            for (long id : ids) {
+                record.appends.remove(id);
+            }
+            if (record.appends.isEmpty()) {
+                it.remove();
+                bytes -= record.size();
+                removed = true;
+            }
+        }
+        if (removed) {
+            rewrite();
+        }
+    }
+
+    public synchronized void startReplay(ScheduledExecutorService executor, Replayer replayer) {
+        stopReplay();
+        replayQueue = null;
+        replayTask = executor.scheduleWithFixedDelay(() -> replayNext(replayer),
+                REPLAY_DELAY_MS, REPLAY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops handing over records. Whatever was not handed over yet is still in the file.
+     */
+    public synchronized void stopReplay() {
+        if (replayTask != null) {
+            replayTask.cancel(false);
+            replayTask = null;
+        }
+        replayQueue = null;
+    }
+
+    void replayNext(Replayer replayer) {
+        Record record;
+        synchronized (this) {
+            if (replayQueue == null) {
+                load();
+                records = mergeVars(records, true);
+                recount();
+                rewrite();
+                replayQueue = new ArrayDeque<>(records);
+                if (!replayQueue.isEmpty()) {
+                    log.debug("Replaying {} outbox records", replayQueue.size());
+                }
+            }
+            record = replayQueue.poll();
+            if (record == null) {
+                if (replayTask != null) {
+                    replayTask.cancel(false);
+                    replayTask = null;
+                }
+                return;
+            }
+            // Dropped to make room since replay started
+            if (!records.contains(record)) {
+                return;
+            }
+        }
+
+        try {
+            if (record.kind == KIND_VARS) {
+                replayer.replayVars(record.vars);
+            } else {
+                Buffer payload = new Buffer().write(record.payload);
+                String route = readString(payload);
+                String contentType = readString(payload);
+                replayer.replayRequest(route, RequestBody.create(
+                        contentType.isEmpty() ? null : MediaType.parse(contentType), payload.readByteArray()));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Dropping unreadable outbox record", e);
+        }
+
+        // Only taken off disk once handed over, from here on the replayer keeps it
+        synchronized (this) {
+            if (records.remove(record)) {
+                bytes -= record.size();
+                rewrite();
+            }
+        }
+    }
+
+    /**
+     * @return false if the record is too large to keep
+     */
+    private synchronized boolean append(Record record) {
+        load();
+        if (record.size() > MAX_BYTES) {
+            log.warn("Submission of {} bytes is too large for the outbox, dropping it", record.size());
+            return false;
+        }
+
+        records.add(record);
+        bytes += record.size();
+        if (bytes > MAX_BYTES) {
+            compact();
+            return true;
+        }
+
+        outboxDir.mkdirs();
+        try (BufferedSink sink = Okio.buffer(Okio.appendingSink(outboxFile))) {
+            write(sink, record);
+        } catch (IOException e) {
+            log.warn("Failed to append to the outbox", e);
+        }
+        return true;
+    }
+
+    /**
+     * Merges var records and drops the oldest records until the file fits under the cap.
+     */
+    private void compact() {
+        records = mergeVars(records, false);
+        recount();
+
+        for (byte kind : new byte[]{KIND_REQUEST, KIND_VARS}) {
+            Iterator<Record> it = records.iterator();
+            while (bytes > MAX_BYTES && it.hasNext()) {
+                Record record = it.next();
+                if (record.kind == kind) {
+                    log.warn("Outbox is full, dropping its oldest record");
+                    it.remove();
+                    bytes -= record.size();
+                }
+            }
+        }
+        rewrite();
+    }
+
+    private void recount() {
+        bytes = 0;
+        for (Record record : records) {
+            bytes += record.size();
+        }
+    }
+
+    /**
+     * @param everything whether to merge records still waiting to be discarded as well. Left
+     *                   alone, merging them would tie their fate to records they do not hold.
+     */
+    private static List<Record> mergeVars(List<Record> records, boolean everything) {
+        Map<String, List<Record>> byAccount = new LinkedHashMap<>();
+        List<Record> merged = new ArrayList<>(records.size());
+        int unmerged = 0;
+        for (Record record : records) {
+            if (record.kind == KIND_VARS) {
+                VarSubmission vars = record.vars;
+                String key = everything || record.appends.isEmpty()
+                        ? vars.getUsername() + '\n' + vars.getProfile()
+                        : "\n" + unmerged++;
+                byAccount.computeIfAbsent(key, k -> new ArrayList<>()).add(record);
+            }
+        }
+
+        for (List<Record> accountRecords : byAccount.values()) {
+            if (accountRecords.size() == 1) {
+                merged.add(accountRecords.get(0));
+                continue;
+            }
+
+            // Records are in file order, so writing them in turn leaves the newest value of each id
+            IntDeltaMap varbits = new IntDeltaMap(1024);
+            IntDeltaMap varps = new IntDeltaMap(256);
+            SkillState skills = new SkillState();
+            for (Record record : accountRecords) {
+                VarSubmission submission = record.vars;
+                submission.getVarbits().forEach(varbits::put);
+                submission.getVarps().forEach(varps::put);
+                submission.getSkills().forEach(skills::put);
+            }
+
+            VarSubmission newest = accountRecords.get(accountRecords.size() - 1).vars;
+            VarDeltaBatch varbitBatch = new VarDeltaBatch(varbits.dirtyCount());
+            varbits.drain(varbitBatch);
+            VarDeltaBatch varpBatch = new VarDeltaBatch(varps.dirtyCount());
+            varps.drain(varpBatch);
+            merged.add(varsRecord(new VarSubmission(newest.getUsername(), newest.getProfile(),
+                    newest.getVersion(), varbitBatch, varpBatch, skills, 0)));
+        }
+
+        for (Record record : records) {
+            if (record.kind != KIND_VARS) {
+                merged.add(record);
+            }
+        }
+        return merged;
+    }
+
+    private static Record varsRecord(VarSubmission submission) {
+        Buffer payload = new Buffer();
+        try {
+            VarSubmissionCodec.encode(submission, payload);
+        } catch (IOException e) {
+            // Writing to a memory buffer does not fail
+            throw new IllegalStateException(e);
+        }
+        return new Record(KIND_VARS, payload.readByteArray(), submission, new HashSet<>());
+    }
+
+    private void load() {
+        if (records != null) {
+            return;
+        }
+
+        records = new ArrayList<>();
+        bytes = 0;
+        if (!outboxFile.exists()) {
+            return;
+        }
+
+        boolean damaged = false;
+        try (BufferedSource source = Okio.buffer(Okio.source(outboxFile))) {
+            while (!source.exhausted()) {
+                byte kind = source.readByte();
+                byte[] payload = source.readByteArray(source.readInt());
+                VarSubmission vars = null;
+                if (kind == KIND_VARS) {
+                    vars = VarSubmissionCodec.decode(new Buffer().write(payload));
+                } else if (kind != KIND_REQUEST) {
+                    throw new IOException("Unknown outbox record kind " + kind);
+                }
+                Record record = new Record(kind, payload, vars, new HashSet<>());
+                records.add(record);
+                bytes += record.size();
+            }
+        } catch (EOFException e) {
+            // Cut short by a crash mid-append, everything before the torn record is intact
+            log.warn("Outbox ends with a partial record, dropping it");
+            damaged = true;
+        } catch (IOException e) {
+            log.warn("Outbox is unreadable past record {}, dropping the rest", records.size(), e);
+            damaged = true;
+        }
+
+        if (damaged) {
+            rewrite();
+        }
+    }
+
+    private void rewrite() {
+        if (records.isEmpty()) {
+            if (outboxFile.exists() && !outboxFile.delete()) {
+                log.warn("Failed to delete the outbox");
+            }
+            return;
+        }
+
+        outboxDir.mkdirs();
+        File tmp = new File(outboxDir, outboxFile.getName() + ".tmp");
+        try {
+            try (BufferedSink sink = Okio.buffer(Okio.sink(tmp))) {
+                for (Record record : records) {
+                    write(sink, record);
+                }
+            }
+            Files.move(tmp.toPath(), outboxFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to rewrite the outbox", e);
+        }
+    }
+
+    private static void write(BufferedSink sink, Record record) throws IOException {
+        sink.writeByte(record.kind);
+        sink.writeInt(record.payload.length);
+        sink.write(record.payload);
+    }
+
+    private static void writeString(BufferedSink sink, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        sink.writeInt(bytes.length);
+        sink.write(bytes);
+    }
+
+    private static String readString(BufferedSource source) throws IOException {
+        return new String(source.readByteArray(source.readInt()), StandardCharsets.UTF_8);
+    }
+}
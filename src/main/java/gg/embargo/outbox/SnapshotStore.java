@@ -0,0 +1,104 @@
+package gg.embargo.outbox;
+
+import gg.embargo.sync.VarSnapshot;
+import gg.embargo.sync.VarSubmission;
+import gg.embargo.sync.VarSubmissionCodec;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import net.runelite.client.RuneLite;
+import net.runelite.client.util.Text;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Keeps, per account and profile, the var values the server has acknowledged along with the
+ * snapshot version it acknowledged them under.
+ * <p>
+ * Each account has one file holding the version followed by every acknowledged value in the
+ * {@link VarSubmissionCodec} format, rewritten whole through a temporary file on every
+ * acknowledgement. Blocking, never call it from the client thread.
+ */
+@Slf4j
+@Singleton
+public class SnapshotStore {
+
+    // Changes as acknowledgements come in, so it stays with the thread that loaded it and is
+    // saved from a copy
+    @Getter
+    public static final class Acknowledged {
+        private final VarSnapshot values;
+        @Setter
+        private long version;
+
+        Acknowledged(VarSnapshot values, long version) {
+            this.values = values;
+            this.version = version;
+        }
+    }
+
+    private static final File SNAPSHOT_DIR = new File(new File(RuneLite.RUNELITE_DIR, "embargo"), "snapshots");
+
+    /**
+     * @return the acknowledged state of the account, or null if none was stored or it cannot
+     *         be read
+     */
+    public Acknowledged load(String username, String profile) {
+        File file = fileFor(username, profile);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+            long version = source.readLong();
+            VarSnapshot values = new VarSnapshot();
+            values.apply(VarSubmissionCodec.decode(source));
+            return new Acknowledged(values, version);
+        } catch (IOException e) {
+            log.warn("Failed to read the acknowledged snapshot of {}, starting over", username, e);
+            delete(username, profile);
+            return null;
+        }
+    }
+
+    /**
+     * @param values every acknowledged value, as from {@link VarSnapshot#toSubmission}
+     */
+    public void save(String username, String profile, long version, VarSubmission values) {
+        File file = fileFor(username, profile);
+        File tmp = new File(SNAPSHOT_DIR, file.getName() + ".tmp");
+        SNAPSHOT_DIR.mkdirs();
+        try {
+            try (BufferedSink sink = Okio.buffer(Okio.sink(tmp))) {
+                sink.writeLong(version);
+                VarSubmissionCodec.encode(values, sink);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to store the acknowledged snapshot of {}", username, e);
+        }
+    }
+
+    public void delete(String username, String profile) {
+        File file = fileFor(username, profile);
+        if (file.exists() && !file.delete()) {
+            log.warn("Failed to delete the acknowledged snapshot of {}", username);
+        }
+    }
+
+    public static Acknowledged empty() {
+        return new Acknowledged(new VarSnapshot(), 0);
+    }
+
+    private static File fileFor(String username, String profile) {
+        return new File(SNAPSHOT_DIR, Text.standardize(username).replace(' ', '_') + '_' + profile + ".bin");
+    }
+}
@@ -0,0 +1,172 @@
+package gg.embargo.sync;
+
+import net.runelite.api.Skill;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Store for pending varbit, varp and skill changes, owned by one thread.
+ * <p>
+ * Storing, draining, restoring and discarding must all happen on the owning thread, the
+ * client thread in the plugin, so none of them take a lock or wait on another thread. Other
+ * threads may only read {@link #hasPending}, {@link #pendingCount} and {@link #changeCount},
+ * which are published through volatile fields after every change.
+ */
+public final class ChangeCapture {
+
+    private final IntDeltaMap varbits = new IntDeltaMap(4096);
+    private final IntDeltaMap varps = new IntDeltaMap(1024);
+    private final SkillState skills = new SkillState();
+
+    // Every discard since the last clear, with the drain it followed. A submission drained
+    // before a discard may still be restored, and must not bring its ids back. Discards only
+    // come with manifest changes, so they are few enough to keep until the next clear.
+    private final List<Discard> discarded = new ArrayList<>();
+    private long drains;
+
+    private volatile int pendingCount;
+    private volatile long changeCount;
+
+    public void storeVarbit(int varbitId, int value) {
+        varbits.put(varbitId, value);
+        changeCount++;
+        publish();
+    }
+
+    public void storeVarp(int varpId, int value) {
+        varps.put(varpId, value);
+        changeCount++;
+        publish();
+    }
+
+    public void storeSkill(Skill skill, int level, int xp) {
+        skills.put(skill, level, xp);
+        changeCount++;
+        publish();
+    }
+
+    /**
+     * Drops the pending changes to the given varbits and varps, including the values of any
+     * submission drained before now that is restored later.
+     */
+    public void discard(int[] varbitIds, int[] varpIds) {
+        if (varbitIds.length == 0 && varpIds.length == 0) {
+            return;
+        }
+        discarded.add(new Discard(drains, varbitIds, varpIds));
+        for (int varbitId : varbitIds) {
+            varbits.discard(varbitId);
+        }
+        for (int varpId : varpIds) {
+            varps.discard(varpId);
+        }
+        publish();
+    }
+
+    /**
+     * Whether a drain would currently produce anything. Only a hint on other threads.
+     */
+    public boolean hasPending() {
+        return pendingCount != 0;
+    }
+
+    /**
+     * Number of changes waiting for the next drain, including those restored from failed
+     * submissions. Only approximate on other threads.
+     */
+    public int pendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Total number of changes captured so far. Only meaningful as a difference between reads.
+     */
+    public long changeCount() {
+        return changeCount;
+    }
+
+    /**
+     * Merges a failed submission back into the pending changes. Changes captured since the
+     * submission was drained take priority over the values it carries, and ids discarded
+     * since then are left out.
+     */
+    public void restore(VarSubmission submission) {
+        BitSet droppedVarbits = new BitSet();
+        BitSet droppedVarps = new BitSet();
+        for (Discard discard : discarded) {
+            // Submissions not drained here carry no drain number and honour every discard
+            if (discard.afterDrain >= submission.getDrain()) {
+                for (int varbitId : discard.varbitIds) {
+                    droppedVarbits.set(varbitId);
+                }
+                for (int varpId : discard.varpIds) {
+                    droppedVarps.set(varpId);
+                }
+            }
+        }
+
+        submission.getVarbits().forEach((varbitId, value) -> {
+            if (!droppedVarbits.get(varbitId)) {
+                varbits.putIfClean(varbitId, value);
+            }
+        });
+        submission.getVarps().forEach((varpId, value) -> {
+            if (!droppedVarps.get(varpId)) {
+                varps.putIfClean(varpId, value);
+            }
+        });
+        submission.getSkills().forEach(skills::putIfClean);
+        publish();
+    }
+
+    /**
+     * Drains everything captured or restored so far.
+     *
+     * @return the drained submission, or null if nothing was pending
+     */
+    public VarSubmission drain(String username, String profile, float version) {
+        if (pendingCount == 0) {
+            return null;
+        }
+
+        VarDeltaBatch varbitBatch = new VarDeltaBatch(varbits.dirtyCount());
+        varbits.drain(varbitBatch);
+        VarDeltaBatch varpBatch = new VarDeltaBatch(varps.dirtyCount());
+        varps.drain(varpBatch);
+        SkillState skillBatch = new SkillState();
+        skills.drainTo(skillBatch);
+        publish();
+
+        return new VarSubmission(username, profile, version, varbitBatch, varpBatch, skillBatch, ++drains);
+    }
+
+    /**
+     * Drops all pending changes.
+     */
+    public void clear() {
+        varbits.clear();
+        varps.clear();
+        skills.clear();
+        discarded.clear();
+        publish();
+    }
+
+    private void publish() {
+        pendingCount = varbits.dirtyCount() + varps.dirtyCount() + skills.dirtyCount();
+    }
+
+    private static final class Discard {
+        // Number of drains done before the discard
+        final long afterDrain;
+        final int[] varbitIds;
+        final int[] varpIds;
+
+        Discard(long afterDrain, int[] varbitIds, int[] varpIds) {
+            this.afterDrain = afterDrain;
+            this.varbitIds = varbitIds;
+            this.varpIds = varpIds;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package gg.embargo.sync;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * The distinct varps that changed since the last drain, in first-changed order.
+ * <p>
+ * Marking a varp that is already dirty is a bit test, so a burst of changes to the same varp
+ * within a tick costs next to nothing and the varp is visited once when drained. Not thread
+ * safe, meant for the client thread.
+ */
+public final class DirtyVarps {
+
+    private long[] bits = new long[0];
+    private int[] order = new int[16];
+    private int size;
+
+    public void mark(int varpId) {
+        if (varpId < 0) {
+            return;
+        }
+        int word = varpId >>> 6;
+        if (word >= bits.length) {
+            bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+        }
+        long bit = 1L << varpId;
+        if ((bits[word] & bit) != 0) {
+            return;
+        }
+        bits[word] |= bit;
+        if (size == order.length) {
+            order = Arrays.copyOf(order, size * 2);
+        }
+        order[size++] = varpId;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Hands every dirty varp to the action once and leaves the set empty. The action must
+     * not mark varps itself.
+     */
+    public void drain(IntConsumer action) {
+        try {
+            for (int i = 0; i < size; i++) {
+                action.accept(order[i]);
+            }
+        } finally {
+            clear();
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            int varpId = order[i];
+            bits[varpId >>> 6] &= ~(1L << varpId);
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,257 @@
+package gg.embargo.sync;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * The one place that decides when pending varbit, varp and level changes get submitted.
+ * <p>
+ * Flushes run every {@link #BASE_INTERVAL_MS} while changes keep coming in. When a whole
+ * interval passes without a new change the interval doubles, up to {@link #MAX_INTERVAL_MS},
+ * and the first change after that brings the next flush forward to the base interval. Crossing
+ * {@link #SIZE_THRESHOLD} pending changes flushes straight away. Only one flush is ever in
+ * flight, a request for another while one is running is coalesced into it.
+ * <p>
+ * Every flush gets its own id, so a flush given up on as stuck that reports back late cannot
+ * end a newer one. Flushes that must not be dropped, like the final flush on logout, go
+ * through {@link #flushNow} and wait their turn instead.
+ */
+@Slf4j
+public final class FlushScheduler {
+
+    public enum FlushReason {
+        INTERVAL,
+        SIZE,
+        FINAL,
+    }
+
+    /**
+     * Submits whatever is pending. Must call {@code done} exactly once, when the submission
+     * has completed or when there turned out to be nothing to send.
+     */
+    @FunctionalInterface
+    public interface Flusher {
+        void flush(FlushReason reason, Runnable done);
+    }
+
+    static final long BASE_INTERVAL_MS = 10_000;
+    static final long MAX_INTERVAL_MS = 60_000;
+    static final int SIZE_THRESHOLD = 1000;
+
+    // A flush that has not reported back by now is assumed lost so flushing can resume
+    private static final long STUCK_FLUSH_MS = 60_000;
+
+    private final ScheduledExecutorService executor;
+    private final Flusher flusher;
+    private final IntSupplier queueDepth;
+    private final LongSupplier changeCount;
+
+    private final AtomicBoolean earlyFlushQueued = new AtomicBoolean();
+    // Set while the interval is above the base, so a capture knows to bring the next tick forward
+    private final AtomicBoolean backedOff = new AtomicBoolean();
+    private final Map<FlushReason, AtomicLong> flushCounts = new EnumMap<>(FlushReason.class);
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private static final long IDLE = 0;
+
+    // Guards the flush in flight and the flushes waiting for it
+    private final Object flight = new Object();
+    private long flightId = IDLE;
+    private long lastFlightId;
+    private long flightStartedAt;
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+
+    @Getter
+    private volatile FlushReason lastFlushReason;
+
+    // Guarded by this
+    private ScheduledFuture<?> nextTick;
+    private long interval = BASE_INTERVAL_MS;
+    private long lastChangeCount;
+
+    public FlushScheduler(ScheduledExecutorService executor, Flusher flusher, IntSupplier queueDepth, LongSupplier changeCount) {
+        this.executor = executor;
+        this.flusher = flusher;
+        this.queueDepth = queueDepth;
+        this.changeCount = changeCount;
+        for (FlushReason reason : FlushReason.values()) {
+            flushCounts.put(reason, new AtomicLong());
+        }
+    }
+
+    public synchronized void start() {
+        interval = BASE_INTERVAL_MS;
+        backedOff.set(false);
+        lastChangeCount = changeCount.getAsLong();
+        scheduleTick();
+    }
+
+    public synchronized void stop() {
+        if (nextTick != null) {
+            nextTick.cancel(false);
+            nextTick = null;
+        }
+    }
+
+    /**
+     * Called after changes are captured. Cheap enough for the client thread: it only reads
+     * the queue depth and two flags, and hands anything else to the executor.
+     */
+    public void onCapture() {
+        if (backedOff.get() && backedOff.compareAndSet(true, false)) {
+            executor.execute(this::resumeBaseInterval);
+        }
+        if (queueDepth.getAsInt() >= SIZE_THRESHOLD && earlyFlushQueued.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                earlyFlushQueued.set(false);
+                flush(FlushReason.SIZE);
+            });
+        }
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    public boolean isFlushing() {
+        synchronized (flight) {
+            return flightId != IDLE;
+        }
+    }
+
+    /**
+     * @return how many flushes each reason has started since the plugin started
+     */
+    public Map<FlushReason, Long> getFlushCounts() {
+        Map<FlushReason, Long> counts = new EnumMap<>(FlushReason.class);
+        flushCounts.forEach((reason, count) -> counts.put(reason, count.get()));
+        return counts;
+    }
+
+    /**
+     * @return how many flush requests were folded into a flush that was already running
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Runs a flush with its own flusher as soon as no other flush is in flight, instead of
+     * coalescing it into the one that is.
+     */
+    public void flushNow(FlushReason reason, Flusher flusher) {
+        Runnable done;
+        synchronized (flight) {
+            done = claim();
+            if (done == null) {
+                waiting.add(() -> flushNow(reason, flusher));
+                return;
+            }
+        }
+        run(reason, flusher, done);
+    }
+
+    private void flush(FlushReason reason) {
+        Runnable done = claim();
+        if (done == null) {
+            coalesced.incrementAndGet();
+            return;
+        }
+        run(reason, this.flusher, done);
+    }
+
+    /**
+     * @return the callback ending the new flush, or null if another one is still in flight
+     */
+    private Runnable claim() {
+        synchronized (flight) {
+            long now = System.currentTimeMillis();
+            if (flightId != IDLE) {
+                if (now - flightStartedAt < STUCK_FLUSH_MS) {
+                    return null;
+                }
+                log.warn("Previous flush never completed, starting a new one");
+            }
+
+            long id = ++lastFlightId;
+            flightId = id;
+            flightStartedAt = now;
+            return () -> land(id);
+        }
+    }
+
+    private void land(long id) {
+        Runnable next;
+        synchronized (flight) {
+            // Late word from a flush given up on as stuck, or a second call
+            if (flightId != id) {
+                return;
+            }
+            flightId = IDLE;
+            next = waiting.poll();
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    private void run(FlushReason reason, Flusher flusher, Runnable done) {
+        lastFlushReason = reason;
+        flushCounts.get(reason).incrementAndGet();
+        log.debug("Flushing {} pending changes ({})", queueDepth.getAsInt(), reason);
+
+        try {
+            flusher.flush(reason, done);
+        } catch (RuntimeException e) {
+            log.error("Flush failed", e);
+            done.run();
+        }
+    }
+
+    private void tick() {
+        long changes = changeCount.getAsLong();
+        boolean idle;
+        synchronized (this) {
+            if (nextTick == null) {
+                // Stopped while this tick was waiting to run
+                return;
+            }
+            idle = changes == lastChangeCount;
+            lastChangeCount = changes;
+            interval = idle ? Math.min(interval * 2, MAX_INTERVAL_MS) : BASE_INTERVAL_MS;
+            backedOff.set(interval > BASE_INTERVAL_MS);
+            scheduleTick();
+        }
+
+        if (queueDepth.getAsInt() > 0) {
+            flush(FlushReason.INTERVAL);
+        }
+    }
+
+    // The tick due after a long idle stretch may be up to MAX_INTERVAL_MS away
+    private synchronized void resumeBaseInterval() {
+        if (nextTick == null || interval == BASE_INTERVAL_MS) {
+            return;
+        }
+        interval = BASE_INTERVAL_MS;
+        if (nextTick.getDelay(TimeUnit.MILLISECONDS) > BASE_INTERVAL_MS && nextTick.cancel(false)) {
+            scheduleTick();
+        }
+    }
+
+    private void scheduleTick() {
+        nextTick = executor.schedule(this::tick, interval, TimeUnit.MILLISECONDS);
+    }
+}
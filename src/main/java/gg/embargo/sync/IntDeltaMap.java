@@ -0,0 +1,246 @@
+package gg.embargo.sync;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing int to int map that remembers which keys changed since the last drain.
+ * <p>
+ * Keys are never removed, only marked clean, so once the table has grown to hold every
+ * tracked id, storing and draining values does not allocate. Keys must be non-negative,
+ * which holds for every varbit and varp id.
+ * <p>
+ * Not thread safe.
+ */
+public final class IntDeltaMap {
+
+    /**
+     * Receives the dirty entries of a map while it is being drained.
+     */
+    @FunctionalInterface
+    public interface Writer {
+        void write(int key, int value);
+    }
+
+    private static final int EMPTY = -1;
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private int[] keys;
+    private int[] values;
+    private long[] dirty;
+    private int mask;
+    private int size;
+    private int dirtyCount;
+
+    public IntDeltaMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntDeltaMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * Stores a value and marks the key as dirty.
+     */
+    public void put(int key, int value) {
+        int slot = slotFor(key);
+        values[slot] = value;
+        markDirty(slot);
+    }
+
+    /**
+     * Stores a value only when the key has no pending change, so newer values always win
+     * over ones being merged back from a failed submission.
+     */
+    public void putIfClean(int key, int value) {
+        int slot = slotFor(key);
+        if (!isDirty(slot)) {
+            values[slot] = value;
+            markDirty(slot);
+        }
+    }
+
+    /**
+     * Stores a value, marking the key dirty only when it is new or its value differs.
+     *
+     * @return true if the key was new or its value changed
+     */
+    public boolean update(int key, int value) {
+        int sizeBefore = size;
+        int slot = slotFor(key);
+        if (size == sizeBefore && values[slot] == value) {
+            return false;
+        }
+        values[slot] = value;
+        markDirty(slot);
+        return true;
+    }
+
+    /**
+     * Stores a value only for a key that was never stored, leaving it clean.
+     */
+    public void putIfAbsent(int key, int value) {
+        int sizeBefore = size;
+        int slot = slotFor(key);
+        if (size != sizeBefore) {
+            values[slot] = value;
+        }
+    }
+
+    /**
+     * Marks a key clean, so its pending change is not drained. Does nothing for a key that
+     * was never stored.
+     */
+    public void discard(int key) {
+        if (key < 0) {
+            return;
+        }
+        int slot = hash(key) & mask;
+        int k;
+        while ((k = keys[slot]) != EMPTY) {
+            if (k == key) {
+                long bit = 1L << slot;
+                if ((dirty[slot >>> 6] & bit) != 0) {
+                    dirty[slot >>> 6] &= ~bit;
+                    dirtyCount--;
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Hands every dirty entry to the writer and marks it clean.
+     *
+     * @return the number of entries written
+     */
+    public int drain(Writer writer) {
+        int written = 0;
+        for (int word = 0; word < dirty.length; word++) {
+            long bits = dirty[word];
+            while (bits != 0) {
+                int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                writer.write(keys[slot], values[slot]);
+                bits &= bits - 1;
+                written++;
+            }
+            dirty[word] = 0;
+        }
+        dirtyCount = 0;
+        return written;
+    }
+
+    /**
+     * Hands every stored entry to the writer, dirty or not, without changing anything.
+     */
+    public void forEach(Writer writer) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY) {
+                writer.write(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int dirtyCount() {
+        return dirtyCount;
+    }
+
+    public boolean hasDirty() {
+        return dirtyCount != 0;
+    }
+
+    /**
+     * Drops every key and pending change but keeps the table allocated.
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(dirty, 0L);
+        size = 0;
+        dirtyCount = 0;
+    }
+
+    private boolean isDirty(int slot) {
+        return (dirty[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private void markDirty(int slot) {
+        long bit = 1L << slot;
+        long word = dirty[slot >>> 6];
+        if ((word & bit) == 0) {
+            dirty[slot >>> 6] = word | bit;
+            dirtyCount++;
+        }
+    }
+
+    private int slotFor(int key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key: " + key);
+        }
+        int slot = hash(key) & mask;
+        int k;
+        while ((k = keys[slot]) != EMPTY) {
+            if (k == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+            return slotFor(key);
+        }
+
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        long[] oldDirty = dirty;
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key == EMPTY) {
+                continue;
+            }
+            int slot = hash(key) & mask;
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = oldValues[i];
+            size++;
+            if ((oldDirty[i >>> 6] & (1L << i)) != 0) {
+                markDirty(slot);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new int[capacity];
+        dirty = new long[(capacity + 63) >>> 6];
+        mask = capacity - 1;
+        size = 0;
+        dirtyCount = 0;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 32) * 2 - 1) << 1;
+        return Math.max(capacity, 64);
+    }
+}
@@ -0,0 +1,112 @@
+package gg.embargo.sync;
+
+import net.runelite.api.Skill;
+
+/**
+ * Level and experience per skill, indexed by {@link Skill#ordinal()}, with a bit per skill
+ * marking the ones that hold a value.
+ * <p>
+ * Storing a stat is two array writes and an OR into the mask, so the stream of XP drops while
+ * skilling never hashes a skill name or boxes a level. An experience of -1 means the value
+ * came from a source that only knew the level.
+ */
+public final class SkillState {
+
+    @FunctionalInterface
+    public interface Writer {
+        void write(Skill skill, int level, int xp);
+    }
+
+    public static final int UNKNOWN_XP = -1;
+
+    private static final Skill[] SKILLS = Skill.values();
+
+    static {
+        if (SKILLS.length > Long.SIZE) {
+            throw new IllegalStateException("Too many skills for a long mask: " + SKILLS.length);
+        }
+    }
+
+    private final int[] levels = new int[SKILLS.length];
+    private final int[] xp = new int[SKILLS.length];
+    private long dirty;
+
+    /**
+     * @return true if the skill had no value yet or either number changed
+     */
+    public boolean put(Skill skill, int level, int xp) {
+        int ordinal = skill.ordinal();
+        long bit = 1L << ordinal;
+        boolean changed = (dirty & bit) == 0 || levels[ordinal] != level || this.xp[ordinal] != xp;
+        levels[ordinal] = level;
+        this.xp[ordinal] = xp;
+        dirty |= bit;
+        return changed;
+    }
+
+    /**
+     * Like {@link #put}, but leaves a skill that already holds a value alone.
+     */
+    public void putIfClean(Skill skill, int level, int xp) {
+        if ((dirty & (1L << skill.ordinal())) == 0) {
+            put(skill, level, xp);
+        }
+    }
+
+    public boolean hasDirty() {
+        return dirty != 0;
+    }
+
+    public int dirtyCount() {
+        return Long.bitCount(dirty);
+    }
+
+    /**
+     * The skills holding a value, bit {@code n} standing for the skill with ordinal {@code n}.
+     */
+    public long mask() {
+        return dirty;
+    }
+
+    public int levelAt(int ordinal) {
+        return levels[ordinal];
+    }
+
+    public int xpAt(int ordinal) {
+        return xp[ordinal];
+    }
+
+    /**
+     * Replays every skill holding a value into the writer, in ordinal order.
+     */
+    public void forEach(Writer writer) {
+        for (long remaining = dirty; remaining != 0; remaining &= remaining - 1) {
+            int ordinal = Long.numberOfTrailingZeros(remaining);
+            writer.write(SKILLS[ordinal], levels[ordinal], xp[ordinal]);
+        }
+    }
+
+    /**
+     * Moves every skill holding a value into the target and clears this state.
+     */
+    public void drainTo(SkillState target) {
+        forEach(target::put);
+        dirty = 0;
+    }
+
+    public void clear() {
+        dirty = 0;
+    }
+
+    /**
+     * @return the skill with the given {@link Skill#getName() name}, or null if there is none
+     */
+    public static Skill skillNamed(String name) {
+        for (Skill skill : SKILLS) {
+            if (skill.getName().equals(name)) {
+                return skill;
+            }
+        }
+        return null;
+    }
+}
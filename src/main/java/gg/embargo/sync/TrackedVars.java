@@ -0,0 +1,103 @@
+package gg.embargo.sync;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable set of the varbits and varps a manifest asks to track.
+ * <p>
+ * Membership is a bit in a {@code long[]}, so checking a varp on every varbit change is an
+ * array read and a mask instead of boxing the id for a hash lookup. A new instance is built
+ * per manifest version and swapped in whole.
+ */
+public final class TrackedVars {
+
+    @Getter
+    private final float manifestVersion;
+    private final int[] varbits;
+    private final int[] varps;
+    private final long[] varbitBits;
+    private final long[] varpBits;
+
+    private TrackedVars(float manifestVersion, int[] varbits, int[] varps) {
+        this.manifestVersion = manifestVersion;
+        this.varbits = varbits;
+        this.varps = varps;
+        this.varbitBits = toBits(varbits);
+        this.varpBits = toBits(varps);
+    }
+
+    /**
+     * Negative ids are ignored and duplicates collapsed.
+     */
+    public static TrackedVars of(float manifestVersion, int[] varbits, int[] varps) {
+        return new TrackedVars(manifestVersion, normalize(varbits), normalize(varps));
+    }
+
+    public boolean isVarbitTracked(int varbitId) {
+        return contains(varbitBits, varbitId);
+    }
+
+    public boolean isVarpTracked(int varpId) {
+        return contains(varpBits, varpId);
+    }
+
+    public void forEachVarbit(IntConsumer action) {
+        for (int varbitId : varbits) {
+            action.accept(varbitId);
+        }
+    }
+
+    public void forEachVarp(IntConsumer action) {
+        for (int varpId : varps) {
+            action.accept(varpId);
+        }
+    }
+
+    /**
+     * @return the tracked varbit ids in ascending order
+     */
+    public int[] getVarbits() {
+        return varbits.clone();
+    }
+
+    /**
+     * @return the tracked varp ids in ascending order
+     */
+    public int[] getVarps() {
+        return varps.clone();
+    }
+
+    /**
+     * @return the tracked varbits the other set does not track, in ascending order
+     */
+    public int[] varbitsNotIn(TrackedVars other) {
+        return Arrays.stream(varbits).filter(id -> !other.isVarbitTracked(id)).toArray();
+    }
+
+    /**
+     * @return the tracked varps the other set does not track, in ascending order
+     */
+    public int[] varpsNotIn(TrackedVars other) {
+        return Arrays.stream(varps).filter(id -> !other.isVarpTracked(id)).toArray();
+    }
+
+    private static boolean contains(long[] bits, int id) {
+        int word = id >>> 6;
+        return word < bits.length && (bits[word] & (1L << id)) != 0;
+    }
+
+    private static int[] normalize(int[] ids) {
+        return Arrays.stream(ids).filter(id -> id >= 0).sorted().distinct().toArray();
+    }
+
+    private static long[] toBits(int[] sortedIds) {
+        long[] bits = new long[sortedIds.length == 0 ? 0 : (sortedIds[sortedIds.length - 1] >>> 6) + 1];
+        for (int id : sortedIds) {
+            bits[id >>> 6] |= 1L << id;
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,60 @@
+package gg.embargo.sync;
+
+import java.util.Arrays;
+
+/**
+ * Id/value pairs drained from an {@link IntDeltaMap} for a single submission.
+ * <p>
+ * Entries are packed into one {@code long[]}, id in the high half and value in the low half,
+ * so a batch costs one array however many entries it holds, and sorting the array orders
+ * the entries by id.
+ */
+public final class VarDeltaBatch implements IntDeltaMap.Writer {
+
+    private long[] entries;
+    private int size;
+
+    public VarDeltaBatch(int expectedSize) {
+        entries = new long[Math.max(expectedSize, 8)];
+    }
+
+    @Override
+    public void write(int key, int value) {
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+        }
+        entries[size++] = ((long) key << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int keyAt(int index) {
+        return (int) (entries[index] >>> 32);
+    }
+
+    public int valueAt(int index) {
+        return (int) entries[index];
+    }
+
+    /**
+     * Orders the entries by id.
+     */
+    public void sort() {
+        Arrays.sort(entries, 0, size);
+    }
+
+    /**
+     * Replays every entry into the writer.
+     */
+    public void forEach(IntDeltaMap.Writer writer) {
+        for (int i = 0; i < size; i++) {
+            writer.write(keyAt(i), valueAt(i));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package gg.embargo.sync;
+
+import net.runelite.api.Skill;
+
+/**
+ * The last captured value of every varbit, varp and skill for one account and profile.
+ * <p>
+ * Everything captured is either submitted or parked in the outbox, so when the account comes
+ * back to this profile only values that differ from the snapshot need to be captured again.
+ * Not thread safe, meant for the client thread.
+ */
+public final class VarSnapshot {
+
+    private final IntDeltaMap varbits = new IntDeltaMap(4096);
+    private final IntDeltaMap varps = new IntDeltaMap(1024);
+    private final SkillState skills = new SkillState();
+
+    /**
+     * @return true if the varbit was not in the snapshot or held another value
+     */
+    public boolean putVarbit(int varbitId, int value) {
+        return varbits.update(varbitId, value);
+    }
+
+    /**
+     * @return true if the varp was not in the snapshot or held another value
+     */
+    public boolean putVarp(int varpId, int value) {
+        return varps.update(varpId, value);
+    }
+
+    /**
+     * @return true if the skill was not in the snapshot or its level or experience changed
+     */
+    public boolean putSkill(Skill skill, int level, int xp) {
+        return skills.put(skill, level, xp);
+    }
+
+    /**
+     * Takes every value a submission carries.
+     */
+    public void apply(VarSubmission submission) {
+        submission.getVarbits().forEach(varbits::update);
+        submission.getVarps().forEach(varps::update);
+        submission.getSkills().forEach(skills::put);
+    }
+
+    /**
+     * Fills in the values of another snapshot for ids this one has no value for yet.
+     */
+    public void seedFrom(VarSnapshot other) {
+        other.varbits.forEach(varbits::putIfAbsent);
+        other.varps.forEach(varps::putIfAbsent);
+        other.skills.forEach(skills::putIfClean);
+    }
+
+    /**
+     * Every value in the snapshot as one submission, for storing it with the submission codec.
+     */
+    public VarSubmission toSubmission(String username, String profile) {
+        VarDeltaBatch varbitBatch = new VarDeltaBatch(varbits.size());
+        varbits.forEach(varbitBatch);
+        VarDeltaBatch varpBatch = new VarDeltaBatch(varps.size());
+        varps.forEach(varpBatch);
+        SkillState skillCopy = new SkillState();
+        skills.forEach(skillCopy::put);
+        return new VarSubmission(username, profile, 0, varbitBatch, varpBatch, skillCopy, 0);
+    }
+}
@@ -0,0 +1,25 @@
+package gg.embargo.sync;
+
+import lombok.Value;
+
+/**
+ * The varbit, varp and skill changes drained for one call to the untrackables route.
+ * Kept around until the call completes so a failed upload can be merged back.
+ */
+@Value
+public class VarSubmission {
+    String username;
+    String profile;
+    float version;
+    VarDeltaBatch varbits;
+    VarDeltaBatch varps;
+    // Treated as read-only once drained
+    SkillState skills;
+    // Number of the ChangeCapture drain that produced this submission, or 0 if it was not
+    // drained in this session. Decides which later discards a restore has to honour.
+    long drain;
+
+    public int entryCount() {
+        return varbits.size() + varps.size() + skills.dirtyCount();
+    }
+}
@@ -0,0 +1,162 @@
+package gg.embargo.sync;
+
+import net.runelite.api.Skill;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+
+import java.io.IOException;
+
+/**
+ * Compact binary encoding of a {@link VarSubmission}.
+ * <p>
+ * Layout, where varint is an unsigned LEB128 integer and string is a varint byte length
+ * followed by UTF-8:
+ * <pre>
+ * byte    format version
+ * string  username
+ * string  profile
+ * int     manifest version, float bits, big-endian
+ * varint  varbit count, then per varbit sorted by id:
+ *           varint id minus the previous id, varint zig-zag value
+ * varint  varp count, then per varp the same as varbits
+ * varint  skill count, then per skill:
+ *           string skill name, varint level, varint experience plus one
+ * </pre>
+ * Delta-coded sorted ids fit in a single byte almost every time, and most values are small
+ * flags and counters, so an entry usually costs two or three bytes instead of the dozen
+ * a JSON object member takes.
+ * <p>
+ * Format version 1 had no experience after the level. It is still read back from the outbox,
+ * with the experience unknown.
+ */
+public final class VarSubmissionCodec {
+
+    public static final int FORMAT_VERSION = 2;
+
+    private static final int LEVELS_ONLY_FORMAT_VERSION = 1;
+
+    // Encoded once, skill names are the same in every submission
+    private static final ByteString[] SKILL_NAMES;
+
+    static {
+        Skill[] skills = Skill.values();
+        SKILL_NAMES = new ByteString[skills.length];
+        for (Skill skill : skills) {
+            SKILL_NAMES[skill.ordinal()] = ByteString.encodeUtf8(skill.getName());
+        }
+    }
+
+    private VarSubmissionCodec() {
+    }
+
+    public static void encode(VarSubmission submission, BufferedSink sink) throws IOException {
+        sink.writeByte(FORMAT_VERSION);
+        writeString(sink, submission.getUsername());
+        writeString(sink, submission.getProfile());
+        sink.writeInt(Float.floatToIntBits(submission.getVersion()));
+        writeBatch(sink, submission.getVarbits());
+        writeBatch(sink, submission.getVarps());
+        SkillState skills = submission.getSkills();
+        writeVarint(sink, skills.dirtyCount());
+        for (long remaining = skills.mask(); remaining != 0; remaining &= remaining - 1) {
+            int ordinal = Long.numberOfTrailingZeros(remaining);
+            ByteString name = SKILL_NAMES[ordinal];
+            writeVarint(sink, name.size());
+            sink.write(name);
+            writeVarint(sink, skills.levelAt(ordinal));
+            // Shifted so an unknown experience of -1 stays a one byte varint
+            writeVarint(sink, skills.xpAt(ordinal) + 1);
+        }
+    }
+
+    /**
+     * Reads back a submission written by {@link #encode}.
+     *
+     * @throws IOException if the source ends early or holds an unknown format version
+     */
+    public static VarSubmission decode(BufferedSource source) throws IOException {
+        int format = source.readByte();
+        if (format != FORMAT_VERSION && format != LEVELS_ONLY_FORMAT_VERSION) {
+            throw new IOException("Unknown var submission format " + format);
+        }
+        String username = readString(source);
+        String profile = readString(source);
+        float version = Float.intBitsToFloat(source.readInt());
+        VarDeltaBatch varbits = readBatch(source);
+        VarDeltaBatch varps = readBatch(source);
+        int skillCount = readVarint(source);
+        SkillState skills = new SkillState();
+        for (int i = 0; i < skillCount; i++) {
+            Skill skill = SkillState.skillNamed(readString(source));
+            int level = readVarint(source);
+            int xp = format == LEVELS_ONLY_FORMAT_VERSION ? SkillState.UNKNOWN_XP : readVarint(source) - 1;
+            // A skill this client does not know is dropped rather than failing the record
+            if (skill != null) {
+                skills.put(skill, level, xp);
+            }
+        }
+        return new VarSubmission(username, profile, version, varbits, varps, skills, 0);
+    }
+
+    private static void writeBatch(BufferedSink sink, VarDeltaBatch batch) throws IOException {
+        batch.sort();
+        writeVarint(sink, batch.size());
+        int previous = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            int id = batch.keyAt(i);
+            writeVarint(sink, id - previous);
+            writeVarint(sink, zigZag(batch.valueAt(i)));
+            previous = id;
+        }
+    }
+
+    private static void writeString(BufferedSink sink, String value) throws IOException {
+        ByteString bytes = ByteString.encodeUtf8(value);
+        writeVarint(sink, bytes.size());
+        sink.write(bytes);
+    }
+
+    private static VarDeltaBatch readBatch(BufferedSource source) throws IOException {
+        int count = readVarint(source);
+        VarDeltaBatch batch = new VarDeltaBatch(count);
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            id += readVarint(source);
+            batch.write(id, unZigZag(readVarint(source)));
+        }
+        return batch;
+    }
+
+    private static String readString(BufferedSource source) throws IOException {
+        return source.readByteString(readVarint(source)).utf8();
+    }
+
+    static void writeVarint(BufferedSink sink, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            sink.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        sink.writeByte(value);
+    }
+
+    static int readVarint(BufferedSource source) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = source.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,90 @@
+package gg.embargo.sync;
+
+/**
+ * Immutable varp to tracked-varbit index in compressed sparse row form.
+ * <p>
+ * The varbits packed into varp {@code v} are {@code varbitAt(i)} for
+ * {@code start(v) <= i < end(v)}. Only tracked varbits are present, so looking up a varp
+ * that holds none of them costs a bounds check and two array reads.
+ * <p>
+ * Each varp also gets a mask of the bits its tracked varbits occupy. XOR-ing the old and new
+ * varp values against that mask says whether any tracked varbit changed without asking the
+ * client for a single varbit value, and the new values are sliced out of the varp directly.
+ */
+public final class VarbitIndex {
+
+    public static final VarbitIndex EMPTY = new VarbitIndex(new int[1], new int[0], new int[0], new int[0], new int[0]);
+
+    private final int[] offsets;
+    private final int[] varbits;
+    private final int[] shifts;
+    private final int[] fieldMasks;
+    private final int[] varpMasks;
+
+    VarbitIndex(int[] offsets, int[] varbits, int[] shifts, int[] fieldMasks, int[] varpMasks) {
+        this.offsets = offsets;
+        this.varbits = varbits;
+        this.shifts = shifts;
+        this.fieldMasks = fieldMasks;
+        this.varpMasks = varpMasks;
+    }
+
+    /**
+     * The bits of the varp covered by tracked varbits, or 0 when it holds none.
+     */
+    public int mask(int varpId) {
+        return varpId >= 0 && varpId < varpMasks.length ? varpMasks[varpId] : 0;
+    }
+
+    public int start(int varpId) {
+        return varpId >= 0 && varpId < offsets.length - 1 ? offsets[varpId] : 0;
+    }
+
+    public int end(int varpId) {
+        return varpId >= 0 && varpId < offsets.length - 1 ? offsets[varpId + 1] : 0;
+    }
+
+    public int varbitAt(int index) {
+        return varbits[index];
+    }
+
+    /**
+     * The bits of its varp that the varbit at {@code index} occupies.
+     */
+    public int fieldMaskAt(int index) {
+        return fieldMasks[index];
+    }
+
+    /**
+     * Extracts the value of the varbit at {@code index} from the value of its varp.
+     */
+    public int valueAt(int index, int varpValue) {
+        return (varpValue & fieldMasks[index]) >>> shifts[index];
+    }
+
+    /**
+     * Writes the value of every indexed varbit of varps {@code fromVarp} up to {@code toVarp},
+     * sliced out of a snapshot of all varp values, so a full read can be spread over several
+     * calls. Varps past the end of the snapshot are skipped.
+     */
+    public void readRange(int[] varpValues, int fromVarp, int toVarp, IntDeltaMap.Writer writer) {
+        int varpCount = Math.min(Math.min(toVarp, varpCount()), varpValues.length);
+        for (int varpId = Math.max(fromVarp, 0); varpId < varpCount; varpId++) {
+            int value = varpValues[varpId];
+            for (int i = offsets[varpId], end = offsets[varpId + 1]; i < end; i++) {
+                writer.write(varbits[i], (value & fieldMasks[i]) >>> shifts[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return varbits.length;
+    }
+
+    /**
+     * One past the highest varp holding a tracked varbit.
+     */
+    public int varpCount() {
+        return offsets.length - 1;
+    }
+}
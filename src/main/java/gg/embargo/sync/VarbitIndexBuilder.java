@@ -0,0 +1,116 @@
+package gg.embargo.sync;
+
+import net.runelite.api.VarbitComposition;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Builds {@link VarbitIndex} instances for the tracked varbits.
+ * <p>
+ * The varp and bit range of each varbit are remembered between builds, so when the manifest
+ * adds a handful of varbits only those are looked up in the cache. Must only be used from
+ * the client thread, since resolving a varbit reads the game cache.
+ */
+public final class VarbitIndexBuilder {
+
+    private static final int UNRESOLVED = -1;
+
+    private int[] varpOf = new int[0];
+    private int[] lsbOf = new int[0];
+    private int[] fieldMaskOf = new int[0];
+    private int[] lastTracked;
+    private VarbitIndex lastIndex = VarbitIndex.EMPTY;
+
+    /**
+     * Returns an index covering the given varbits, resolving only ids that have not been
+     * seen by a previous build.
+     */
+    public VarbitIndex build(int[] trackedVarbits, IntFunction<VarbitComposition> lookup) {
+        int[] tracked = trackedVarbits.clone();
+        Arrays.sort(tracked);
+        if (Arrays.equals(tracked, lastTracked)) {
+            return lastIndex;
+        }
+
+        int maxVarp = -1;
+        int resolved = 0;
+        for (int varbitId : tracked) {
+            int varpId = resolve(varbitId, lookup);
+            if (varpId != UNRESOLVED) {
+                maxVarp = Math.max(maxVarp, varpId);
+                resolved++;
+            }
+        }
+
+        // Counting sort by varp into the CSR arrays
+        int[] offsets = new int[maxVarp + 2];
+        for (int varbitId : tracked) {
+            int varpId = varpOf(varbitId);
+            if (varpId != UNRESOLVED) {
+                offsets[varpId + 1]++;
+            }
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+
+        int[] fill = Arrays.copyOf(offsets, offsets.length);
+        int[] varbits = new int[resolved];
+        int[] shifts = new int[resolved];
+        int[] fieldMasks = new int[resolved];
+        int[] varpMasks = new int[maxVarp + 1];
+        for (int varbitId : tracked) {
+            int varpId = varpOf(varbitId);
+            if (varpId != UNRESOLVED) {
+                int slot = fill[varpId]++;
+                varbits[slot] = varbitId;
+                shifts[slot] = lsbOf[varbitId];
+                fieldMasks[slot] = fieldMaskOf[varbitId];
+                varpMasks[varpId] |= fieldMaskOf[varbitId];
+            }
+        }
+
+        // Varbits the cache could not resolve yet are retried on the next build
+        lastTracked = resolved == tracked.length ? tracked : null;
+        lastIndex = new VarbitIndex(offsets, varbits, shifts, fieldMasks, varpMasks);
+        return lastIndex;
+    }
+
+    /**
+     * Looks up one varbit ahead of a {@link #build}, so resolving a long list can be spread
+     * over several client ticks and the build itself only reads remembered values.
+     */
+    public void prefetch(int varbitId, IntFunction<VarbitComposition> lookup) {
+        resolve(varbitId, lookup);
+    }
+
+    private int varpOf(int varbitId) {
+        return varbitId < varpOf.length ? varpOf[varbitId] : UNRESOLVED;
+    }
+
+    private int resolve(int varbitId, IntFunction<VarbitComposition> lookup) {
+        if (varbitId < 0) {
+            return UNRESOLVED;
+        }
+        if (varbitId >= varpOf.length) {
+            int oldLength = varpOf.length;
+            int newLength = Math.max(varbitId + 1, oldLength * 2);
+            varpOf = Arrays.copyOf(varpOf, newLength);
+            Arrays.fill(varpOf, oldLength, newLength, UNRESOLVED);
+            lsbOf = Arrays.copyOf(lsbOf, newLength);
+            fieldMaskOf = Arrays.copyOf(fieldMaskOf, newLength);
+        }
+        if (varpOf[varbitId] == UNRESOLVED) {
+            VarbitComposition varbit = lookup.apply(varbitId);
+            if (varbit != null) {
+                int lsb = varbit.getLeastSignificantBit();
+                int width = varbit.getMostSignificantBit() - lsb + 1;
+                varpOf[varbitId] = varbit.getIndex();
+                lsbOf[varbitId] = lsb;
+                fieldMaskOf[varbitId] = (int) (((1L << width) - 1) << lsb);
+            }
+        }
+        return varpOf[varbitId];
+    }
+}
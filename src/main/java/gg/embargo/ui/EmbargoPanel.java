@@ -195,7 +195,7 @@ public class EmbargoPanel extends PluginPanel {
     }
 
     public void updateLoggedIn(boolean scheduled) {
-        if (dataManager.stopTryingForAccount.get()) {
+        if (dataManager.isStoppedTryingForAccount()) {
             emailLabel.setText("Account not registered with Embargo");
             missingRequirementsPanelX.removeAll();
             missingRequirementsContainer.removeAll();
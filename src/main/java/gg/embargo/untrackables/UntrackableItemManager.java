@@ -1,5 +1,9 @@
 package gg.embargo.untrackables;
 
+import gg.embargo.DataManager.APIRoutes;
+import gg.embargo.api.EmbargoApi;
+import gg.embargo.manifest.CompiledManifest;
+import gg.embargo.manifest.ManifestManager;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -17,7 +21,6 @@ import javax.inject.Singleton;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.stream.Collectors;
 
 
 @Slf4j
@@ -36,9 +39,10 @@ public class UntrackableItemManager {
     }
 
     @Inject
-    private OkHttpClient okHttpClient;
+    private EmbargoApi embargoApi;
 
-    private static final String UNTRACKABLE_ENDPOINT = "https://embargo.gg/api/untrackables";
+    @Inject
+    private ManifestManager manifestManager;
 
     private final HashMap<String, LocalDateTime> lastLootTime = new HashMap<>();
 
@@ -78,6 +82,10 @@ public class UntrackableItemManager {
         }
     }
 
+    // Sorted, used until the manifest has been read
+    private static final int[] DEFAULT_UNTRACKABLE_ITEMS = Arrays.stream(UntrackableItems.values())
+            .mapToInt(UntrackableItems::getItemId).sorted().toArray();
+
     void getUntrackableItems(String username) {
         Widget widget = client.getWidget(786445);
         ItemContainer itemContainer = client.getItemContainer(InventoryID.BANK);
@@ -88,16 +96,14 @@ public class UntrackableItemManager {
             return;
         }
         if (itemContainer != null && children != null) {
-
-            //Convert itemMap to use manifest.untrackableItems (which is a list of integers) instead of hardcoded enum
-            var itemMap = Arrays.stream(UntrackableItems.values()).map(UntrackableItems::getItemId).collect(Collectors.toCollection(HashSet::new));
+            CompiledManifest manifest = manifestManager.getManifest();
             List<Integer> playerItems = new ArrayList<>();
             java.util.Map<Integer, Integer> itemQuantities = new java.util.HashMap<>();
             for (int i = 0; i < itemContainer.size(); ++i) {
 
                 Widget child = children[i];
                 var currentItem = child.getItemId();
-                if (itemMap.contains(currentItem)) {
+                if (isUntrackable(manifest, currentItem)) {
                     playerItems.add(currentItem);
                     int quantity = child.getItemQuantity();
                     itemQuantities.put(currentItem, quantity);
@@ -112,14 +118,13 @@ public class UntrackableItemManager {
 
             RequestBody.add("username", username);
 
-            Request request = new Request.Builder()
-                    .url(UNTRACKABLE_ENDPOINT)
+            Request request = embargoApi.newRequest(APIRoutes.UNTRACKABLES)
                     .post(RequestBody.build())
                     .addHeader("Content-Type", "application/json")
                     .build();
 
             try {
-                okHttpClient.newCall(request).enqueue(new Callback() {
+                embargoApi.enqueue(APIRoutes.UNTRACKABLES, request, new Callback() {
                     @Override
                     public void onFailure(@NonNull Call call, @NonNull IOException e) {
                         log.error("Something went wrong inside of getUntrackableItems: {}", e.getLocalizedMessage());
@@ -139,6 +144,13 @@ public class UntrackableItemManager {
         }
     }
 
+    private static boolean isUntrackable(CompiledManifest manifest, int itemId) {
+        if (manifest != null) {
+            return manifest.isUntrackableItem(itemId);
+        }
+        return Arrays.binarySearch(DEFAULT_UNTRACKABLE_ITEMS, itemId) >= 0;
+    }
+
     public void startUp() {
         eventBus.register(this);
     }
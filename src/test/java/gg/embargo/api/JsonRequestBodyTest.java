@@ -0,0 +1,85 @@
+package gg.embargo.api;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonRequestBodyTest {
+
+    private static final Gson GSON = new Gson();
+
+    @Test
+    public void clogUnlockBody() throws IOException {
+        assertJson("{\"playerName\":\"Zezima\",\"itemName\":\"Pet rock\"}",
+                new ClogUnlockBody("Zezima", "Pet rock"));
+    }
+
+    @Test
+    public void completionBody() throws IOException {
+        assertJson("{\"raid\":\"Chambers of Xeric\",\"message\":\"done\",\"user\":\"Zezima\",\"players\":[{\"name\":\"A\"},{\"name\":\"B\"}]}",
+                CompletionBody.raid("Chambers of Xeric", "done", "Zezima", new String[]{"A", "B"}));
+        assertJson("{\"minigame\":\"Wintertodt\",\"world\":302,\"message\":\"done\",\"user\":\"Zezima\",\"players\":[]}",
+                CompletionBody.minigame("Wintertodt", 302, "done", "Zezima", new String[0]));
+    }
+
+    @Test
+    public void lootBody() throws IOException {
+        LootBody body = new LootBody("Zulrah", "Zezima", new String[]{"Zezima"},
+                new int[]{12934}, new int[]{500}, new int[]{120}, new String[]{"Zulrah's \"scales\""});
+        assertJson("{\"bossName\":\"Zulrah\",\"user\":\"Zezima\","
+                        + "\"itemStacks\":\"[{\\\"id\\\":12934,\\\"quantity\\\":500,\\\"price\\\":120,\\\"name\\\":\\\"Zulrah's \\\\\\\"scales\\\\\\\"\\\"}]\","
+                        + "\"players\":[{\"name\":\"Zezima\"}]}",
+                body);
+    }
+
+    /**
+     * The collection log used to be sent with Gson from nested maps, the streamed body has to
+     * produce the same document.
+     */
+    @Test
+    public void collectionLogBodyMatchesTheMapsItReplaced() throws IOException {
+        String[] names = {"Pet rock", "Dragon \"axe\"", "\u00dcn\u00efcode"};
+        int[] ids = {1, 6739, 30000};
+        int[] quantities = {1, 2, 300};
+
+        List<Map<String, Map<String, Object>>> rawClogItems = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            Map<String, Object> itemData = new LinkedHashMap<>();
+            itemData.put("id", ids[i]);
+            itemData.put("quantity", quantities[i]);
+            Map<String, Map<String, Object>> entry = new LinkedHashMap<>();
+            entry.put(names[i], itemData);
+            rawClogItems.add(entry);
+        }
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("rawClogItems", rawClogItems);
+        Map<String, Object> submission = new LinkedHashMap<>();
+        submission.put("username", "Zezima");
+        submission.put("profile", "STANDARD");
+        submission.put("data", data);
+
+        assertJson(GSON.toJson(submission), new CollectionLogBody("Zezima", "STANDARD", names, ids, quantities));
+    }
+
+    @Test
+    public void emptyCollectionLogBody() throws IOException {
+        assertJson("{\"username\":\"Zezima\",\"profile\":\"STANDARD\",\"data\":{\"rawClogItems\":[]}}",
+                new CollectionLogBody("Zezima", "STANDARD", new String[0], new int[0], new int[0]));
+    }
+
+    private static void assertJson(String expected, RequestBody body) throws IOException {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals(GSON.fromJson(expected, JsonElement.class), GSON.fromJson(buffer.readUtf8(), JsonElement.class));
+    }
+}
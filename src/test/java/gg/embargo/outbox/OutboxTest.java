@@ -0,0 +1,73 @@
+package gg.embargo.outbox;
+
+import gg.embargo.sync.ChangeCapture;
+import gg.embargo.sync.VarSubmission;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class OutboxTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A client that dies part way through replay, without getting to stop it, still has the
+     * records it had not handed over yet on the next start.
+     */
+    @Test
+    public void recordsSurviveAStopMidReplay() throws Exception {
+        Outbox outbox = new Outbox(folder.getRoot());
+        outbox.appendVars(submission("Zezima"));
+        outbox.appendRequest("first", RequestBody.create(JSON, "{}"));
+        outbox.appendRequest("second", RequestBody.create(JSON, "{}"));
+        outbox.appendRequest("third", RequestBody.create(JSON, "{}"));
+
+        Recorder crashed = new Recorder();
+        Outbox session = new Outbox(folder.getRoot());
+        session.replayNext(crashed);
+        session.replayNext(crashed);
+        assertEquals(Arrays.asList("vars:Zezima", "first"), crashed.replayed);
+
+        Recorder restarted = new Recorder();
+        Outbox next = new Outbox(folder.getRoot());
+        for (int i = 0; i < 4; i++) {
+            next.replayNext(restarted);
+        }
+        assertEquals(Arrays.asList("second", "third"), restarted.replayed);
+
+        Recorder drained = new Recorder();
+        new Outbox(folder.getRoot()).replayNext(drained);
+        assertEquals(0, drained.replayed.size());
+    }
+
+    private static VarSubmission submission(String username) {
+        ChangeCapture capture = new ChangeCapture();
+        capture.storeVarbit(1, 1);
+        return capture.drain(username, "STANDARD", 1);
+    }
+
+    private static final class Recorder implements Outbox.Replayer {
+        private final List<String> replayed = new ArrayList<>();
+
+        @Override
+        public void replayVars(VarSubmission submission) {
+            replayed.add("vars:" + submission.getUsername());
+        }
+
+        @Override
+        public void replayRequest(String route, RequestBody body) {
+            replayed.add(route);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package gg.embargo.sync;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeCaptureTest {
+
+    private static final int WRITES = 200_000;
+    private static final int WRITES_PER_TASK = 1_000;
+
+    /**
+     * Writes, flushes and restores of failed submissions all arrive from different threads and
+     * are run on the owning thread, while another thread keeps reading the pending count.
+     * Every change has to be delivered exactly once.
+     */
+    @Test
+    public void deliversEveryChangeOnceAcrossDrainAndRestore() throws Exception {
+        ChangeCapture capture = new ChangeCapture();
+        Map<Integer, Integer> varbits = new HashMap<>();
+        Map<Integer, Integer> varps = new HashMap<>();
+        AtomicBoolean duplicate = new AtomicBoolean();
+
+        Stress stress = new Stress(capture, submission -> {
+            submission.getVarbits().forEach((id, value) -> {
+                if (varbits.put(id, value) != null) {
+                    duplicate.set(true);
+                }
+            });
+            submission.getVarps().forEach((id, value) -> {
+                if (varps.put(id, value) != null) {
+                    duplicate.set(true);
+                }
+            });
+        });
+        stress.run(i -> {
+            capture.storeVarbit(i, i * 7);
+            capture.storeVarp(i, ~i);
+        });
+
+        assertTrue("a change was delivered twice", !duplicate.get());
+        assertEquals(WRITES, varbits.size());
+        assertEquals(WRITES, varps.size());
+        for (int i = 0; i < WRITES; i++) {
+            assertEquals(Integer.valueOf(i * 7), varbits.get(i));
+            assertEquals(Integer.valueOf(~i), varps.get(i));
+        }
+    }
+
+    /**
+     * The writer keeps overwriting a few ids while submissions fail and are restored. Values
+     * merged back from a failed submission must never end up delivered after a newer one.
+     */
+    @Test
+    public void newerValuesWinOverRestoredOnes() throws Exception {
+        ChangeCapture capture = new ChangeCapture();
+        int ids = 64;
+        Map<Integer, Integer> delivered = new HashMap<>();
+
+        Stress stress = new Stress(capture, submission ->
+                submission.getVarbits().forEach(delivered::put));
+        stress.run(i -> capture.storeVarbit(i % ids, i / ids));
+
+        int last = (WRITES - 1) / ids;
+        for (int id = 0; id < ids; id++) {
+            assertEquals(Integer.valueOf(last), delivered.get(id));
+        }
+    }
+
+    @Test
+    public void restoredChangesAreCountedUntilDrained() {
+        ChangeCapture capture = new ChangeCapture();
+        capture.storeVarbit(1, 1);
+        capture.storeVarp(2, 2);
+        VarSubmission submission = capture.drain("user", "STANDARD", 1);
+        assertEquals(0, capture.pendingCount());
+
+        capture.restore(submission);
+        assertEquals(2, capture.pendingCount());
+        assertTrue(capture.hasPending());
+
+        assertEquals(2, capture.drain("user", "STANDARD", 1).entryCount());
+        assertNull(capture.drain("user", "STANDARD", 1));
+    }
+
+    @Test
+    public void discardedIdsAreNotRestored() {
+        ChangeCapture capture = new ChangeCapture();
+        capture.storeVarbit(1, 1);
+        capture.storeVarbit(2, 2);
+        VarSubmission inFlight = capture.drain("user", "STANDARD", 1);
+
+        capture.discard(new int[]{1}, new int[0]);
+        capture.restore(inFlight);
+
+        VarSubmission submission = capture.drain("user", "STANDARD", 1);
+        assertEquals(1, submission.entryCount());
+        assertEquals(2, submission.getVarbits().keyAt(0));
+        assertEquals(2, submission.getVarbits().valueAt(0));
+    }
+
+    /**
+     * A later drain, like a final or size flush while the first submission is still in
+     * flight, must not forget what was discarded after the first one was drained.
+     */
+    @Test
+    public void discardsOutliveLaterDrains() {
+        ChangeCapture capture = new ChangeCapture();
+        capture.storeVarbit(1, 1);
+        capture.storeVarbit(2, 2);
+        VarSubmission first = capture.drain("user", "STANDARD", 1);
+
+        capture.discard(new int[]{1}, new int[0]);
+        capture.storeVarbit(3, 3);
+        VarSubmission second = capture.drain("user", "STANDARD", 1);
+        capture.restore(first);
+
+        VarSubmission submission = capture.drain("user", "STANDARD", 1);
+        assertEquals(1, submission.entryCount());
+        assertEquals(2, submission.getVarbits().keyAt(0));
+
+        // Drained after the discard, so whatever it carries is restored as is
+        capture.storeVarbit(1, 4);
+        VarSubmission retracked = capture.drain("user", "STANDARD", 1);
+        capture.restore(second);
+        capture.restore(retracked);
+        submission = capture.drain("user", "STANDARD", 1);
+        assertEquals(2, submission.entryCount());
+        assertEquals(1, submission.getVarbits().keyAt(0));
+        assertEquals(4, submission.getVarbits().valueAt(0));
+        assertEquals(3, submission.getVarbits().keyAt(1));
+    }
+
+    private interface Delivery {
+        void deliver(VarSubmission submission);
+    }
+
+    // The owner thread stands in for the client thread. Writes are posted to it in batches,
+    // a flusher on its own thread posts drains and fails every third submission, and the
+    // restore of a failed one is posted from yet another thread before the flusher moves on,
+    // like the OkHttp callback in DataManager does before the next flush may start.
+    private static final class Stress {
+        private final ChangeCapture capture;
+        private final Delivery delivery;
+
+        Stress(ChangeCapture capture, Delivery delivery) {
+            this.capture = capture;
+            this.delivery = delivery;
+        }
+
+        void run(IntConsumer write) throws Exception {
+            ExecutorService owner = Executors.newSingleThreadExecutor();
+            ExecutorService callbacks = Executors.newSingleThreadExecutor();
+            AtomicBoolean writing = new AtomicBoolean(true);
+            AtomicBoolean negative = new AtomicBoolean();
+            CountDownLatch start = new CountDownLatch(1);
+
+            Thread writer = new Thread(() -> {
+                await(start);
+                for (int from = 0; from < WRITES; from += WRITES_PER_TASK) {
+                    int first = from;
+                    owner.execute(() -> {
+                        for (int i = first, end = Math.min(first + WRITES_PER_TASK, WRITES); i < end; i++) {
+                            write.accept(i);
+                        }
+                    });
+                }
+                owner.execute(() -> writing.set(false));
+            });
+            Thread flusher = new Thread(() -> {
+                await(start);
+                Random random = new Random(42);
+                while (writing.get()) {
+                    if (!capture.hasPending()) {
+                        Thread.yield();
+                        continue;
+                    }
+                    VarSubmission submission = CompletableFuture.supplyAsync(
+                            () -> capture.drain("user", "STANDARD", 1), owner).join();
+                    if (submission == null) {
+                        continue;
+                    }
+                    if (random.nextInt(3) == 0) {
+                        CompletableFuture.runAsync(() -> owner.execute(() -> capture.restore(submission)), callbacks).join();
+                    } else {
+                        delivery.deliver(submission);
+                    }
+                }
+            });
+            Thread poller = new Thread(() -> {
+                await(start);
+                while (writing.get()) {
+                    if (capture.pendingCount() < 0) {
+                        negative.set(true);
+                    }
+                }
+            });
+
+            try {
+                writer.start();
+                flusher.start();
+                poller.start();
+                start.countDown();
+                writer.join();
+                flusher.join();
+                poller.join();
+            } finally {
+                callbacks.shutdown();
+                owner.shutdown();
+                owner.awaitTermination(10, TimeUnit.SECONDS);
+            }
+
+            VarSubmission submission;
+            while ((submission = capture.drain("user", "STANDARD", 1)) != null) {
+                delivery.deliver(submission);
+            }
+            assertTrue("the pending count went negative", !negative.get());
+            assertEquals(0, capture.pendingCount());
+        }
+
+        private static void await(CountDownLatch latch) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package gg.embargo.sync;
+
+import net.runelite.api.VarbitComposition;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class VarbitIndexTest {
+
+    private static final int VARPS = 4000;
+
+    /**
+     * Reading the index in slices, the way loadInitialData spreads it over client ticks, gives
+     * every tracked varbit the value getVarbitValue would compute from the same varps.
+     */
+    @Test
+    public void rangedReadMatchesPerVarbitReads() {
+        Layout layout = new Layout(new Random(7));
+        VarbitIndex index = new VarbitIndexBuilder().build(layout.trackedVarbits(), layout.cache::get);
+
+        Map<Integer, Integer> bulk = new HashMap<>();
+        for (int from = 0; from < index.varpCount(); from += 97) {
+            index.readRange(layout.varps, from, from + 97, bulk::put);
+        }
+
+        assertEquals(layout.cache.size(), index.size());
+        assertEquals(layout.perVarbit(), bulk);
+    }
+
+    /**
+     * Random varbits packed into the varps without overlapping, standing in for the game cache.
+     */
+    private static final class Layout {
+
+        private final Map<Integer, VarbitComposition> cache = new HashMap<>();
+        private final int[] varps = new int[VARPS];
+
+        Layout(Random random) {
+            int varbitId = 0;
+            for (int varpId = 0; varpId < VARPS; varpId++) {
+                varps[varpId] = random.nextInt();
+                int lsb = 0;
+                while (lsb < 32 && random.nextInt(4) != 0) {
+                    int width = Math.min(1 + random.nextInt(8), 32 - lsb);
+                    cache.put(varbitId, varbit(varpId, lsb, lsb + width - 1));
+                    varbitId += 1 + random.nextInt(3);
+                    lsb += width;
+                }
+            }
+        }
+
+        int[] trackedVarbits() {
+            return cache.keySet().stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        int getVarbitValue(int varbitId) {
+            VarbitComposition varbit = cache.get(varbitId);
+            int width = varbit.getMostSignificantBit() - varbit.getLeastSignificantBit() + 1;
+            int mask = width == 32 ? -1 : (1 << width) - 1;
+            return (varps[varbit.getIndex()] >>> varbit.getLeastSignificantBit()) & mask;
+        }
+
+        Map<Integer, Integer> perVarbit() {
+            Map<Integer, Integer> values = new HashMap<>();
+            for (int varbitId : cache.keySet()) {
+                values.put(varbitId, getVarbitValue(varbitId));
+            }
+            return values;
+        }
+
+        private static VarbitComposition varbit(int varpId, int lsb, int msb) {
+            return new VarbitComposition() {
+                @Override
+                public int getIndex() {
+                    return varpId;
+                }
+
+                @Override
+                public int getLeastSignificantBit() {
+                    return lsb;
+                }
+
+                @Override
+                public int getMostSignificantBit() {
+                    return msb;
+                }
+            };
+        }
+    }
+}